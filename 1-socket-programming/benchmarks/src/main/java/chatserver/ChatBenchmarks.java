@@ -0,0 +1,35 @@
+package chatserver;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all chat benchmarks with the GC profiler, which adds the
+ * allocation rate (gc.alloc.rate.norm, bytes per operation) to every
+ * result, so two builds of the server can be compared on time and on
+ * garbage.  Given any arguments it behaves like the standard JMH
+ * launcher instead, e.g.
+ *
+ *     java -jar target/benchmarks.jar FanOut -p recipients=1000 -prof gc
+ */
+public class ChatBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        run();
+    }
+
+    private static void run() throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ChatBenchmarks.class.getPackage().getName() + ".*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,121 @@
+package chatserver;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The cost of one chat message on the server, from building its text
+ * to handing it to every recipient:
+ *
+ *     buildMessage       the MESSAGE text of a broadcast and its
+ *                        text and binary encodings
+ *     broadcastWriters   the original fan-out: println of a freshly
+ *                        built line on an autoflushing PrintWriter
+ *                        per client
+ *     broadcastRegistry  the current fan-out: one shared Frame offered
+ *                        to every session's OutboundQueue, which its
+ *                        writer then drains
+ *
+ * The writers write to a null stream, so only the work done by the
+ * server is measured, not the sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private final String sender = "alice";
+    private final String text = "hello everybody, this is a chat message of a typical length";
+
+    private PrintWriter[] writers;
+    private ClientRegistry registry;
+    private QueueSession[] sessions;
+
+    /**
+     * A client whose writer is simulated by draining its queue right
+     * after the broadcast.
+     */
+    static final class QueueSession implements ClientSession {
+        final String name;
+        final OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.Policy.DROP_OLDEST);
+
+        QueueSession(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public void send(Frame frame) {
+            queue.offer(frame);
+        }
+
+        public int queueDepth() {
+            return queue.depth();
+        }
+
+        public long droppedLines() {
+            return queue.dropped();
+        }
+
+        public long throttledNanos() {
+            return 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        writers = new PrintWriter[recipients];
+        registry = new ClientRegistry();
+        sessions = new QueueSession[recipients];
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new PrintWriter(OutputStream.nullOutputStream(), true);
+            sessions[i] = new QueueSession("user" + i);
+            registry.claim(sessions[i].name, sessions[i]);
+        }
+    }
+
+    @Benchmark
+    public void buildMessage(Blackhole blackhole) {
+        Frame frame = Frame.message(sender + ": " + text);
+        blackhole.consume(frame.buffer(false));
+        blackhole.consume(frame.buffer(true));
+    }
+
+    @Benchmark
+    public void broadcastWriters() {
+        for (PrintWriter writer : writers) {
+            writer.println("MESSAGE " + sender + ": " + text);
+        }
+    }
+
+    @Benchmark
+    public void broadcastRegistry(Blackhole blackhole) {
+        registry.broadcast(Frame.message(sender + ": " + text));
+        for (QueueSession session : sessions) {
+            Frame frame = session.queue.poll();
+            blackhole.consume(frame.buffer(false));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package chatserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The parsing on both ends of a connection, per line or frame:
+ *
+ *     clientDispatch*   what ChatClient does with every line or
+ *                       frame from the server before handing it to
+ *                       the UI: read it, find the opcode of a line
+ *                       with Opcode.ofLine and take the payload
+ *     privateSplit*     what ClientProtocol does with every chat line:
+ *                       split off the receiver of a private message
+ *                       with ClientProtocol.privateReceiver and
+ *                       privateText, or BinaryCodec's versions of them
+ *                       for the fields of a binary frame
+ *
+ * The inputs are a mix like a busy chat produces, mostly messages with
+ * some presence changes, pings and private messages.  The readers are
+ * made once and rewound before every invocation, so the allocations
+ * counted by the GC profiler are those of the parsing alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final int LINES = 64;
+
+    private ByteArrayInputStream textInput;
+    private ByteArrayInputStream binaryInput;
+    private ProtocolReader textReader;
+    private ProtocolReader binaryReader;
+    private String[] chatLines;
+    private boolean[] chatPrivate;
+    private byte[][] chatPayloads;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        chatLines = new String[LINES];
+        chatPrivate = new boolean[LINES];
+        chatPayloads = new byte[LINES][];
+        for (int i = 0; i < LINES; i++) {
+            Frame frame;
+            if (i % 16 == 0) {
+                frame = Frame.of(Opcode.ENTERCLIENT, "user" + i);
+            } else if (i % 16 == 1) {
+                frame = Frame.of(Opcode.LEAVECLIENT, "user" + i);
+            } else if (i % 16 == 2) {
+                frame = Frame.of(Opcode.PRESENCE, (i - 1) + " " + i + " +user" + i);
+            } else if (i % 32 == 3) {
+                frame = Frame.of(Opcode.PING);
+            } else {
+                frame = Frame.message("user" + (i % 7) + ": message number " + i + " of the benchmark");
+            }
+            frame.writeTo(text, false);
+            frame.writeTo(binary, true);
+
+            String receiver = "user" + (i % 7);
+            String message = "message number " + i + " of the benchmark";
+            boolean isPrivate = i % 4 == 0;
+            chatLines[i] = isPrivate ? receiver + ">>" + message : message;
+            byte[] frameBytes = isPrivate
+                    ? BinaryCodec.encodePrivate(receiver, message)
+                    : BinaryCodec.encode(Opcode.BROADCAST, message);
+            // The payload as ProtocolReader leaves it, without the header
+            chatPrivate[i] = isPrivate;
+            chatPayloads[i] = Arrays.copyOfRange(frameBytes, BinaryCodec.HEADER_SIZE, frameBytes.length);
+        }
+        textInput = new ByteArrayInputStream(text.toByteArray());
+        binaryInput = new ByteArrayInputStream(binary.toByteArray());
+        textReader = new ProtocolReader(textInput);
+        binaryReader = new ProtocolReader(binaryInput);
+    }
+
+    /**
+     * Takes the readers back to the start of their input.  They keep
+     * nothing once they have returned everything.
+     */
+    @Setup(Level.Invocation)
+    public void rewind() {
+        textInput.reset();
+        binaryInput.reset();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void clientDispatchText(Blackhole blackhole) throws IOException {
+        String line;
+        while ((line = textReader.readLine()) != null) {
+            Opcode opcode = Opcode.ofLine(line);
+            if (opcode != null) {
+                blackhole.consume(opcode);
+                blackhole.consume(line.substring(opcode.textPrefix.length()));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void clientDispatchBinary(Blackhole blackhole) throws IOException {
+        while (binaryReader.readFrame()) {
+            blackhole.consume(binaryReader.opcode());
+            blackhole.consume(BinaryCodec.text(binaryReader.payload(), binaryReader.payloadLength()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void privateSplitText(Blackhole blackhole) {
+        for (String line : chatLines) {
+            String receiver = ClientProtocol.privateReceiver(line);
+            if (receiver != null) {
+                blackhole.consume(receiver);
+                blackhole.consume(ClientProtocol.privateText(line));
+            } else {
+                blackhole.consume(line);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void privateSplitBinary(Blackhole blackhole) {
+        for (int i = 0; i < LINES; i++) {
+            byte[] payload = chatPayloads[i];
+            int length = payload.length;
+            if (chatPrivate[i]) {
+                blackhole.consume(BinaryCodec.privateReceiver(payload, length));
+                blackhole.consume(BinaryCodec.privateText(payload, length));
+            } else {
+                blackhole.consume(BinaryCodec.text(payload, length));
+            }
+        }
+    }
+}
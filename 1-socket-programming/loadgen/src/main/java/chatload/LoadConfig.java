@@ -0,0 +1,126 @@
+package chatload;
+
+/**
+ * Options of the load generator, given as "--key=value" pairs like
+ * the options of the chat server, for example
+ *
+ *     java -jar target/loadgen.jar --clients=2000 --join-rate=500 --message-rate=1000
+ *     java -jar target/loadgen.jar --private-ratio=0.3 --churn-rate=20 --duration=120
+ *
+ * Rates are per second over all simulated clients together.
+ */
+final class LoadConfig {
+
+    String host = "localhost";
+    int port = 9001;
+
+    /**
+     * Chatters kept connected once the ramp up is over.
+     */
+    int clients = 1000;
+
+    /**
+     * New connections per second during the ramp up.
+     */
+    double joinRate = 200;
+
+    /**
+     * Chat messages sent per second by all chatters together.
+     */
+    double messageRate = 200;
+
+    /**
+     * Share of the messages sent privately to a random other chatter
+     * instead of to the lobby.
+     */
+    double privateRatio = 0.1;
+
+    /**
+     * Chatters per second that leave and are replaced by a new one.
+     */
+    double churnRate;
+
+    /**
+     * Bytes of filler added to every message.
+     */
+    int messageSize = 32;
+
+    /**
+     * Seconds of load after the ramp up, and seconds at the start of
+     * them whose latencies are left out of the final report.
+     */
+    int duration = 30;
+    int warmup = 5;
+
+    /**
+     * Selector threads servicing the simulated connections.
+     */
+    int loops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private LoadConfig() {
+    }
+
+    static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --key=value but got " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "host":
+                    config.host = value;
+                    break;
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "clients":
+                    config.clients = Integer.parseInt(value);
+                    break;
+                case "join-rate":
+                    config.joinRate = Double.parseDouble(value);
+                    break;
+                case "message-rate":
+                    config.messageRate = Double.parseDouble(value);
+                    break;
+                case "private-ratio":
+                    config.privateRatio = Double.parseDouble(value);
+                    break;
+                case "churn-rate":
+                    config.churnRate = Double.parseDouble(value);
+                    break;
+                case "message-size":
+                    config.messageSize = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    config.duration = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    config.warmup = Integer.parseInt(value);
+                    break;
+                case "loops":
+                    config.loops = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + key);
+            }
+        }
+        if (config.clients < 1) {
+            throw new IllegalArgumentException("--clients must be at least 1");
+        }
+        if (config.joinRate <= 0) {
+            throw new IllegalArgumentException("--join-rate must be positive");
+        }
+        if (config.privateRatio < 0 || config.privateRatio > 1) {
+            throw new IllegalArgumentException("--private-ratio must be between 0 and 1");
+        }
+        if (config.loops < 1) {
+            throw new IllegalArgumentException("--loops must be at least 1");
+        }
+        if (config.warmup >= config.duration) {
+            throw new IllegalArgumentException("--warmup must be shorter than --duration");
+        }
+        return config;
+    }
+}
@@ -0,0 +1,429 @@
+package chatload;
+
+import chatserver.LatencyHistogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A headless load generator for the chat server.  It opens many
+ * connections that speak the text protocol of ChatClient (answer
+ * SUBMITNAME with a name, then send lines, "name>>text" for private
+ * messages) and drives them at fixed rates:
+ *
+ *     joining   connections are opened at --join-rate until --clients
+ *               chatters are in
+ *     chatting  --message-rate messages per second go out from random
+ *               chatters, --private-ratio of them to a random other
+ *               chatter and the rest to the lobby
+ *     churn     --churn-rate chatters per second disconnect and are
+ *               replaced by a new connection
+ *
+ * Every message carries the System.nanoTime at which it was sent.
+ * Sender and receivers live in this process, so each delivery gives
+ * the end-to-end latency of the server's fan-out.  Once a second the
+ * throughput and latency of that second are printed, and at the end
+ * the percentiles over the whole run minus the warmup.
+ *
+ * Run it against a server started separately on the same machine;
+ * all connections are serviced by a few selector threads, so the
+ * generator itself stays cheap.
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "LG ";
+    private static final int JOIN_GRACE_SECONDS = 10;
+
+    private final LoadConfig config;
+    private final Loop[] loops;
+
+    /**
+     * Chatters that have their name, by slot.  Random chatters are
+     * picked from here for messages, private receivers and churn.
+     */
+    private final AtomicReferenceArray<Chatter> active;
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final String filler;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentPrivate = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+    private volatile LatencyHistogram total;
+    private long sentAtLastReport;
+
+    LoadGenerator(LoadConfig config) throws IOException {
+        this.config = config;
+        this.active = new AtomicReferenceArray<>(config.clients);
+        char[] padding = new char[config.messageSize];
+        Arrays.fill(padding, 'x');
+        this.filler = new String(padding);
+        this.loops = new Loop[config.loops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(LoadConfig.parse(args)).run();
+    }
+
+    /**
+     * Ramps up, runs the load for the configured duration and prints
+     * the final report.
+     */
+    void run() throws InterruptedException {
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("Connecting " + config.clients + " chatters to " + config.host + ":" + config.port
+                + " at " + config.joinRate + " per second");
+
+        long start = System.nanoTime();
+        long end = Long.MAX_VALUE;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        double joinsDue = 0;
+        double messagesDue = 0;
+        double churnDue = 0;
+        int opened = 0;
+        long allOpened = 0;
+        long last = start;
+        long loadStart = 0;
+        long sentAtWarmup = 0;
+        long deliveredAtWarmup = 0;
+
+        while (true) {
+            Thread.sleep(1);
+            long now = System.nanoTime();
+            double elapsed = (now - last) / 1e9;
+            last = now;
+
+            if (opened < config.clients) {
+                joinsDue += config.joinRate * elapsed;
+                for (; joinsDue >= 1 && opened < config.clients; joinsDue--) {
+                    connect(opened++);
+                }
+                allOpened = now;
+            } else if (end == Long.MAX_VALUE && (activeCount.get() >= config.clients
+                    || now - allOpened > TimeUnit.SECONDS.toNanos(JOIN_GRACE_SECONDS))) {
+                // Go ahead without the chatters that could not join
+                loadStart = now;
+                end = now + TimeUnit.SECONDS.toNanos(config.duration);
+                System.out.println(activeCount.get() + " chatters joined, running the load for " + config.duration
+                        + " seconds");
+            }
+            if (loadStart > 0) {
+                messagesDue += config.messageRate * elapsed;
+                for (; messagesDue >= 1; messagesDue--) {
+                    sendMessage();
+                }
+                churnDue += config.churnRate * elapsed;
+                for (; churnDue >= 1; churnDue--) {
+                    churn();
+                }
+                if (total == null && now - loadStart >= TimeUnit.SECONDS.toNanos(config.warmup)) {
+                    total = new LatencyHistogram();
+                    sentAtWarmup = sent.sum();
+                    deliveredAtWarmup = delivered.sum();
+                }
+            }
+            if (now >= nextReport) {
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+                report(now - start);
+            }
+            if (now >= end) {
+                break;
+            }
+        }
+
+        double measured = config.duration - config.warmup;
+        System.out.println();
+        System.out.println("Result over " + (int) measured + " seconds after a " + config.warmup + " second warmup:");
+        System.out.printf("  sent       %.0f messages/s (%.0f%% private)%n", (sent.sum() - sentAtWarmup) / measured,
+                100.0 * sentPrivate.sum() / Math.max(1, sent.sum()));
+        System.out.printf("  delivered  %.0f messages/s%n", (delivered.sum() - deliveredAtWarmup) / measured);
+        System.out.println("  latency    " + total.summary());
+        System.out.println("  joins " + joins.sum() + ", failed connections " + failures.sum());
+        System.exit(0);
+    }
+
+    private void report(long sinceStart) {
+        LatencyHistogram second = interval.getAndSet(new LatencyHistogram());
+        long sentNow = sent.sum();
+        System.out.printf("%4ds  chatters=%d sent=%d/s delivered=%d/s  %s%n",
+                TimeUnit.NANOSECONDS.toSeconds(sinceStart), activeCount.get(), sentNow - sentAtLastReport,
+                second.count(), second.summary());
+        sentAtLastReport = sentNow;
+    }
+
+    // ---- picking what to do ----
+
+    private void connect(int slot) {
+        loops[slot % loops.length].execute(loop -> loop.open(slot));
+    }
+
+    /**
+     * A random chatter that has its name, or null if none is found
+     * after a few tries (during churn some slots are empty).
+     */
+    private Chatter randomChatter() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int tries = 0; tries < 8; tries++) {
+            Chatter chatter = active.get(random.nextInt(active.length()));
+            if (chatter != null) {
+                return chatter;
+            }
+        }
+        return null;
+    }
+
+    private void sendMessage() {
+        Chatter sender = randomChatter();
+        if (sender == null) {
+            return;
+        }
+        String text = MARKER + System.nanoTime() + " " + filler;
+        if (ThreadLocalRandom.current().nextDouble() < config.privateRatio) {
+            Chatter receiver = randomChatter();
+            if (receiver != null && receiver != sender) {
+                sentPrivate.increment();
+                text = receiver.name + ">>" + text;
+            }
+        }
+        sent.increment();
+        String line = text;
+        sender.loop.execute(loop -> sender.write(line));
+    }
+
+    private void churn() {
+        Chatter chatter = randomChatter();
+        if (chatter != null) {
+            chatter.loop.execute(loop -> {
+                chatter.close();
+                loop.open(chatter.slot);
+            });
+        }
+    }
+
+    // ---- the connections ----
+
+    /**
+     * One selector thread and the connections it owns.
+     */
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean wakeupPending = new AtomicBoolean();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "load-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void execute(Consumer<Loop> task) {
+            tasks.add(() -> task.accept(this));
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void open(int slot) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Chatter chatter = new Chatter(this, channel, slot);
+                channel.connect(new InetSocketAddress(config.host, config.port));
+                chatter.key = channel.register(selector, SelectionKey.OP_CONNECT, chatter);
+            } catch (IOException e) {
+                failures.increment();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Chatter chatter = (Chatter) key.attachment();
+                        if (!key.isValid()) {
+                            // Closed by a churn task before we got to it
+                            continue;
+                        }
+                        try {
+                            if (key.isConnectable()) {
+                                chatter.channel.finishConnect();
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                chatter.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                chatter.flush();
+                            }
+                        } catch (IOException e) {
+                            failures.increment();
+                            chatter.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * One simulated chatter.  Only its loop touches it.
+     */
+    private final class Chatter {
+        final Loop loop;
+        final SocketChannel channel;
+        final int slot;
+        SelectionKey key;
+        String name;
+        boolean accepted;
+
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private ByteBuffer pending;
+
+        Chatter(Loop loop, SocketChannel channel, int slot) {
+            this.loop = loop;
+            this.channel = channel;
+            this.slot = slot;
+        }
+
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            int count;
+            while ((count = channel.read(buffer)) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        onLine(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                        lineLength = 0;
+                    } else {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, line.length * 2);
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+                buffer.clear();
+            }
+            buffer.clear();
+            if (count < 0) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+
+        private void onLine(String input) {
+            if (input.startsWith("SUBMITNAME")) {
+                name = "load-" + nextId.incrementAndGet();
+                write(name);
+            } else if (input.startsWith("NAMEACCEPTED")) {
+                accepted = true;
+                joins.increment();
+                active.set(slot, this);
+                activeCount.incrementAndGet();
+            } else if (input.startsWith("MESSAGE ")) {
+                int marker = input.indexOf(MARKER);
+                if (marker >= 0) {
+                    long now = System.nanoTime();
+                    int start = marker + MARKER.length();
+                    int stop = input.indexOf(' ', start);
+                    long sentAt = Long.parseLong(input.substring(start, stop < 0 ? input.length() : stop));
+                    long micros = TimeUnit.NANOSECONDS.toMicros(now - sentAt);
+                    delivered.increment();
+                    interval.get().record(micros);
+                    LatencyHistogram measured = total;
+                    if (measured != null) {
+                        measured.record(micros);
+                    }
+                }
+            } else if (input.startsWith("PING")) {
+                // Servers with a read timeout drop clients that stay silent
+                write("/pong");
+            }
+        }
+
+        void write(String text) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+            if (pending == null) {
+                pending = ByteBuffer.wrap(bytes);
+            } else {
+                ByteBuffer joined = ByteBuffer.allocate(pending.remaining() + bytes.length);
+                joined.put(pending).put(bytes).flip();
+                pending = joined;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                failures.increment();
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            if (pending == null || !channel.isConnected()) {
+                return;
+            }
+            channel.write(pending);
+            if (pending.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                pending = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (accepted) {
+                accepted = false;
+                active.compareAndSet(slot, this, null);
+                activeCount.decrementAndGet();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary wire format.  Every frame is a five byte header followed
+ * by the payload:
+ *
+ *     opcode   1 byte   (see Opcode)
+ *     length   4 bytes  big-endian payload length
+ *     payload  length bytes of UTF-8
+ *
+ * A PRIVATE payload starts with the receiver's name, itself prefixed
+ * by a two byte big-endian length, and the message text takes up the
+ * rest.  Because the receiver is a separate field, names and texts
+ * may contain ">>" without confusing the routing.
+ *
+ * A client asks for the binary format by answering the first
+ * SUBMITNAME with the text line "PROTOCOL BINARY".  The server answers
+ * with the same line and from then on both sides only send binary
+ * frames, starting with a binary SUBMITNAME from the server.  The
+ * client must not send anything else until it has read the answer.
+ */
+final class BinaryCodec {
+
+    /**
+     * The text line that requests, and acknowledges, binary framing.
+     */
+    static final String HANDSHAKE = Opcode.PROTOCOL.textPrefix + "BINARY";
+
+    static final int HEADER_SIZE = 5;
+
+    /**
+     * Frames with a longer payload are treated as a broken client.
+     */
+    static final int MAX_PAYLOAD = 64 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    static byte[] encode(Opcode opcode, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER_SIZE + bytes.length];
+        writeHeader(frame, opcode, bytes.length);
+        System.arraycopy(bytes, 0, frame, HEADER_SIZE, bytes.length);
+        return frame;
+    }
+
+    /**
+     * Encodes a PRIVATE frame for the given receiver.
+     */
+    static byte[] encodePrivate(String receiver, String text) {
+        byte[] name = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("Receiver name too long");
+        }
+        int length = 2 + name.length + bytes.length;
+        byte[] frame = new byte[HEADER_SIZE + length];
+        writeHeader(frame, Opcode.PRIVATE, length);
+        frame[HEADER_SIZE] = (byte) (name.length >>> 8);
+        frame[HEADER_SIZE + 1] = (byte) name.length;
+        System.arraycopy(name, 0, frame, HEADER_SIZE + 2, name.length);
+        System.arraycopy(bytes, 0, frame, HEADER_SIZE + 2 + name.length, bytes.length);
+        return frame;
+    }
+
+    private static void writeHeader(byte[] frame, Opcode opcode, int length) {
+        frame[0] = opcode.code;
+        frame[1] = (byte) (length >>> 24);
+        frame[2] = (byte) (length >>> 16);
+        frame[3] = (byte) (length >>> 8);
+        frame[4] = (byte) length;
+    }
+
+    /**
+     * Reads the payload length from a complete header.
+     *
+     * @throws IllegalStateException if the length is out of range
+     */
+    static int payloadLength(byte[] header) {
+        int length = ((header[1] & 0xFF) << 24) | ((header[2] & 0xFF) << 16)
+                | ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IllegalStateException("Bad frame length " + length);
+        }
+        return length;
+    }
+
+    static String text(byte[] payload, int length) {
+        return new String(payload, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The receiver name of a PRIVATE payload.
+     */
+    static String privateReceiver(byte[] payload, int length) {
+        return new String(payload, 2, privateNameLength(payload, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The message text of a PRIVATE payload.
+     */
+    static String privateText(byte[] payload, int length) {
+        int start = 2 + privateNameLength(payload, length);
+        return new String(payload, start, length - start, StandardCharsets.UTF_8);
+    }
+
+    private static int privateNameLength(byte[] payload, int length) {
+        if (length < 2) {
+            throw new IllegalStateException("Truncated PRIVATE frame");
+        }
+        int nameLength = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        if (2 + nameLength > length) {
+            throw new IllegalStateException("Truncated PRIVATE frame");
+        }
+        return nameLength;
+    }
+
+    /**
+     * Receives every complete frame found by a Decoder.
+     */
+    interface FrameHandler {
+        /**
+         * @param payload only valid during the call; it is reused for
+         *                the next frame
+         * @return false to stop decoding and leave the rest of the
+         *         buffer to the caller
+         */
+        boolean onFrame(Opcode opcode, byte[] payload, int length);
+    }
+
+    /**
+     * Splits the bytes read from a non-blocking channel into frames,
+     * keeping a partly received header or payload until the rest
+     * arrives.  The payload buffer is reused from frame to frame.
+     */
+    static final class Decoder {
+        private final byte[] header = new byte[HEADER_SIZE];
+        private int headerRead;
+        private byte[] payload = new byte[256];
+        private int payloadLength = -1;
+        private int payloadRead;
+
+        /**
+         * Consumes the remaining bytes of the buffer, unless the handler
+         * asks to stop.
+         *
+         * @throws IllegalStateException on an unknown opcode or a bad length
+         */
+        void decode(ByteBuffer buffer, FrameHandler handler) {
+            while (buffer.hasRemaining()) {
+                if (payloadLength < 0) {
+                    int count = Math.min(HEADER_SIZE - headerRead, buffer.remaining());
+                    buffer.get(header, headerRead, count);
+                    headerRead += count;
+                    if (headerRead < HEADER_SIZE) {
+                        return;
+                    }
+                    payloadLength = payloadLength(header);
+                    if (payloadLength > payload.length) {
+                        payload = new byte[Math.max(payloadLength, payload.length * 2)];
+                    }
+                    payloadRead = 0;
+                }
+                int count = Math.min(payloadLength - payloadRead, buffer.remaining());
+                buffer.get(payload, payloadRead, count);
+                payloadRead += count;
+                if (payloadRead < payloadLength) {
+                    return;
+                }
+                Opcode opcode = Opcode.of(header[0]);
+                if (opcode == null) {
+                    throw new IllegalStateException("Unknown opcode " + (header[0] & 0xFF));
+                }
+                int length = payloadLength;
+                headerRead = 0;
+                payloadLength = -1;
+                if (!handler.onFrame(opcode, payload, length)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -6,15 +6,22 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 
 /**
  * A simple Swing-based client for the chat server.  Graphically
@@ -31,19 +38,49 @@ import javax.swing.event.ListSelectionListener;
  * chatters connected to the server.  When the server sends a
  * line beginning with "MESSAGE " then all characters following
  * this string should be displayed in its message area.
+ *
+ * Started with --binary the client asks the server for binary frames
+ * instead (see BinaryCodec), so private messages name their receiver
+ * explicitly rather than relying on the "name>>" prefix.  With
+ * --compress it asks for a compressed connection first (see
+ * DeflateCodec) and carries on uncompressed if the server says no.
+ *
+ * The client list comes as one ROSTER frame followed by PRESENCE
+ * deltas (see Presence) rather than one ENTERCLIENT per client.
+ *
+ * If the server allows it, the session is resumable (see
+ * ResumableSession): when the connection breaks the client reconnects
+ * by itself, and the server sends only what it missed.
+ *
+ * The thread that reads from the server never touches the GUI itself.
+ * It hands what it reads to UiUpdates, which applies it on the event
+ * dispatch thread in batches, at most FRAMES_PER_SECOND times a second.
+ * Only the last HISTORY_SIZE messages are kept.
  */
 public class ChatClient {
 
-    BufferedReader in;
+    static final int HISTORY_SIZE = 5000;
+    static final int FRAMES_PER_SECOND = 30;
+    static final int RECONNECT_ATTEMPTS = 30;
+
+    ProtocolReader in;
     PrintWriter out;
 
+    // Binary framing, see BinaryCodec
+    final boolean binary;
+    OutputStream binaryOut;
+
+    // Compression, see DeflateCodec
+    final boolean compress;
+
     JFrame frame = new JFrame("Chatter");
     Container container;
 
     JLabel clientListTitle = new JLabel("Clients");
     JTextField textField = new JTextField(40);
 
-    JTextArea messageArea = new JTextArea(8, 40);
+    MessageHistory history = new MessageHistory(HISTORY_SIZE);
+    JList<String> messageList = new JList<>(history);
 
     JCheckBox checkBox = new JCheckBox("Broadcast");
 
@@ -51,6 +88,27 @@ public class ChatClient {
     DefaultListModel<String> model = new DefaultListModel<>();
     JList listBox = new JList(model);
 
+    // Room selector; pick a room or type a new name to move there
+    JLabel roomTitle = new JLabel("Room");
+    JComboBox<String> roomBox = new JComboBox<>(new String[] {"lobby"});
+    String currentRoom = "lobby";
+    boolean updatingRooms;
+
+    UiUpdates updates;
+
+    // The client list as of rosterVersion, kept by the reading thread
+    String myName;
+    long rosterVersion = -1;
+    boolean rosterRequested;
+
+    // Session resume, kept by the reading thread: the token, the frames
+    // received since NAMEACCEPTED, and whether a resume is under way
+    String resumeToken;
+    long received;
+    boolean counting;
+    boolean resuming;
+    int reconnects;
+
     /**
      * Constructs the client by laying out the GUI and registering a
      * listener with the textfield so that pressing Return in the
@@ -59,11 +117,16 @@ public class ChatClient {
      * only becomes editable AFTER the client receives the NAMEACCEPTED
      * message from the server.
      */
-    public ChatClient() {
+    public ChatClient(boolean binary, boolean compress) {
+        this.binary = binary;
+        this.compress = compress;
 
         // Layout GUI
         textField.setEditable(false);
-        messageArea.setEditable(false);
+        // Every row has the same height, so the list never measures
+        // all of its rows; long messages are cut off with "..."
+        messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight() + 2);
+        messageList.setFixedCellWidth(380);
         frame.setBounds(0, 0, 700, 400);
         frame.setResizable(false);
         container = frame.getContentPane();
@@ -72,13 +135,21 @@ public class ChatClient {
         textField.setBounds(5, 5, 400, 30);
         container.add(textField);
 
-        messageArea.setBounds(5, 40, 400, 370);
-        container.add(messageArea);
+        JScrollPane messageScroll = new JScrollPane(messageList);
+        messageScroll.setBounds(5, 40, 400, 370);
+        container.add(messageScroll);
+
+        roomTitle.setBounds(420,5,50, 20);
+        container.add(roomTitle);
 
-        clientListTitle.setBounds(420,5,50, 20);
+        roomBox.setEditable(true);
+        roomBox.setBounds(420,25,250, 25);
+        container.add(roomBox);
+
+        clientListTitle.setBounds(420,55,50, 20);
         container.add(clientListTitle);
 
-        listBox.setBounds(420,25,300, 370);
+        listBox.setBounds(420,75,300, 320);
         container.add(listBox);
 
         checkBox.setBounds(600,5,250, 20);
@@ -88,6 +159,8 @@ public class ChatClient {
 //        frame.getContentPane().add(checkBox, "South");
 //        frame.getContentPane().add(new JScrollPane(listBox), "South");
 
+        updates = new UiUpdates(history, messageList, model, HISTORY_SIZE, FRAMES_PER_SECOND);
+
 
         // Listing for text field input
         textField.addActionListener(new ActionListener() {
@@ -97,7 +170,11 @@ public class ChatClient {
              * the text area in preparation for the next message.
              */
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+                try {
+                    sendInput(textField.getText());
+                } catch (IOException ex) {
+                    history.add("Could not send: " + ex.getMessage());
+                }
                 textField.setText("");
             }
         });
@@ -114,6 +191,37 @@ public class ChatClient {
             }
         });
 
+        // Listing to the room selector
+        roomBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                Object room = roomBox.getSelectedItem();
+                if (updatingRooms || room == null || room.toString().trim().equals(currentRoom)) {
+                    return;
+                }
+                try {
+                    if (binary) {
+                        writeFrame(BinaryCodec.encode(Opcode.JOIN, room.toString().trim()));
+                    } else {
+                        out.println("/join " + room.toString().trim());
+                    }
+                } catch (IOException ex) {
+                    history.add("Could not change room: " + ex.getMessage());
+                }
+            }
+        });
+        // Refresh the room list whenever it is opened
+        roomBox.addPopupMenuListener(new PopupMenuListener() {
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                requestRooms();
+            }
+
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
+
         // Listing to check box
         checkBox.addItemListener(new ItemListener() {
             @Override
@@ -150,42 +258,346 @@ public class ChatClient {
     }
 
     /**
-     * Connects to the server then enters the processing loop.
+     * Sends what the user typed.  In binary mode a "name>>" prefix
+     * becomes a PRIVATE frame; when the receiver was picked from the
+     * client list its name is taken from the list, so it may itself
+     * contain ">>".
+     */
+    private void sendInput(String text) throws IOException {
+        if (!binary) {
+            out.println(text);
+            return;
+        }
+        byte[] frame;
+        Object selected = listBox.getSelectedValue();
+        int separator = text.indexOf(">>");
+        if (selected != null && text.startsWith(selected + ">>")) {
+            frame = BinaryCodec.encodePrivate(selected.toString(), text.substring(selected.toString().length() + 2));
+        } else if (separator >= 0) {
+            frame = BinaryCodec.encodePrivate(text.substring(0, separator), text.substring(separator + 2));
+        } else {
+            frame = BinaryCodec.encode(Opcode.BROADCAST, text);
+        }
+        writeFrame(frame);
+    }
+
+    /**
+     * Asks the server for the current room list.
+     */
+    private void requestRooms() {
+        if (!textField.isEditable()) {
+            return;
+        }
+        try {
+            if (binary) {
+                writeFrame(BinaryCodec.encode(Opcode.LIST, ""));
+            } else {
+                out.println("/rooms");
+            }
+        } catch (IOException ex) {
+            history.add("Could not list rooms: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Shows the room the server says we are in.
+     */
+    private void roomJoined(String room) {
+        currentRoom = room;
+        updatingRooms = true;
+        roomBox.setSelectedItem(room);
+        updatingRooms = false;
+    }
+
+    /**
+     * Replaces the choices of the room selector.
+     */
+    private void roomsListed(String rooms) {
+        updatingRooms = true;
+        roomBox.removeAllItems();
+        for (String room : rooms.split(",")) {
+            roomBox.addItem(room);
+        }
+        roomBox.setSelectedItem(currentRoom);
+        updatingRooms = false;
+    }
+
+    /**
+     * Replaces the client list with the one from the server.
+     */
+    private void rosterReceived(String payload) {
+        int space = payload.indexOf(' ');
+        rosterVersion = Long.parseLong(payload.substring(0, space));
+        rosterRequested = false;
+        List<String> names = Presence.split(payload.substring(space + 1));
+        names.remove(myName);
+        updates.roster(names);
+    }
+
+    /**
+     * Applies a delta that follows on from our version, skips one we
+     * already have, and asks for the whole list again if deltas went
+     * missing.
+     */
+    private void presenceReceived(String payload) throws IOException {
+        String[] parts = payload.split(" ", 3);
+        long base = Long.parseLong(parts[0]);
+        long version = Long.parseLong(parts[1]);
+        if (version <= rosterVersion) {
+            return;
+        }
+        if (base != rosterVersion) {
+            if (!rosterRequested) {
+                rosterRequested = true;
+                if (binary) {
+                    writeFrame(BinaryCodec.encode(Opcode.NAMES, ""));
+                } else {
+                    out.println("/roster");
+                }
+            }
+            return;
+        }
+        rosterVersion = version;
+        for (String change : Presence.split(parts[2])) {
+            String name = change.substring(1);
+            if (name.equals(myName)) {
+                continue;
+            }
+            if (change.charAt(0) == '+') {
+                updates.message(name + " has joined the Chat!");
+                updates.entered(name);
+            } else {
+                updates.message(name + " has leave the Chat!");
+                updates.left(name);
+            }
+        }
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        synchronized (binaryOut) {
+            binaryOut.write(frame);
+            binaryOut.flush();
+        }
+    }
+
+    /**
+     * Connects to the server then enters the processing loop.  If the
+     * connection breaks while the session is resumable, connects again
+     * and resumes it.
      */
     private void run() throws IOException {
+        String serverAddress = getServerAddress();
+        while (true) {
+            try {
+                converse(serverAddress);
+            } catch (IOException e) {
+                if (resumeToken == null) {
+                    throw e;
+                }
+            }
+            if (resumeToken == null || ++reconnects > RECONNECT_ATTEMPTS) {
+                return;
+            }
+            if (reconnects == 1) {
+                updates.run(() -> textField.setEditable(false));
+                updates.message("Connection lost, reconnecting...");
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Talks to the server over one connection until it breaks.
+     */
+    private void converse(String serverAddress) throws IOException {
 
         // Make connection and initialize streams
-        String serverAddress = getServerAddress();
         Socket socket = new Socket(serverAddress, 9001);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new ProtocolReader(socket.getInputStream());
+        binaryOut = socket.getOutputStream();
+        out = new PrintWriter(new OutputStreamWriter(binaryOut, StandardCharsets.UTF_8), true);
+        counting = false;
+        resuming = false;
 
         // Process all messages from server, according to the protocol.
 
         // TODO: You may have to extend this protocol to achieve task 9 in the lab sheet
+        boolean negotiated = false;
+        boolean askCompression = compress;
+        boolean askRoster = true;
+        boolean askResume = true;
         while (true) {
+            if (negotiated) {
+                if (!in.readFrame()) {
+                    return;
+                }
+                count(in.opcode());
+                onFrame(in.opcode(), BinaryCodec.text(in.payload(), in.payloadLength()));
+                continue;
+            }
             String line = in.readLine();
-            if (line.startsWith("SUBMITNAME")) {
-                out.println(getName());
-            } else if (line.startsWith("NAMEACCEPTED")) {
-                textField.setEditable(true);
-            } else if (line.startsWith("MESSAGE")) {
-                messageArea.append(line.substring(8) + "\n");
-            } else if (line.startsWith("ENTERCLIENT")) {
+            if (line == null) {
+                return;
+            }
+            count(line.startsWith("NAMEACCEPTED") ? Opcode.NAMEACCEPTED : null);
+            if (askCompression && line.startsWith("SUBMITNAME")) {
+                // Ask for compression; the server answers with the same
+                // line or refuses, and then asks for the name again
+                askCompression = false;
+                out.println(DeflateCodec.HANDSHAKE);
+                if (DeflateCodec.HANDSHAKE.equals(in.readLine())) {
+                    // Sync flushing makes every flush reach the server whole
+                    binaryOut = new DeflaterOutputStream(socket.getOutputStream(), true);
+                    out = new PrintWriter(new OutputStreamWriter(binaryOut, StandardCharsets.UTF_8), true);
+                    in.wrapInput(InflaterInputStream::new);
+                }
+            } else if (askRoster && line.startsWith("SUBMITNAME")) {
+                // Ask for ROSTER and PRESENCE; the server agrees and asks
+                // for the name again
+                askRoster = false;
+                out.println(Presence.HANDSHAKE);
+                in.readLine();
+            } else if (askResume && line.startsWith("SUBMITNAME")) {
+                // Ask for a resumable session; the server agrees or
+                // refuses, and then asks for the name again
+                askResume = false;
+                out.println(ResumableSession.HANDSHAKE);
+                if (!ResumableSession.HANDSHAKE.equals(in.readLine())) {
+                    resumeToken = null;
+                }
+            } else if (binary && line.startsWith("SUBMITNAME")) {
+                // Ask for binary frames; the server answers with the same line
+                out.println(BinaryCodec.HANDSHAKE);
+                if (!BinaryCodec.HANDSHAKE.equals(in.readLine())) {
+                    throw new IOException("The server does not support binary framing");
+                }
+                negotiated = true;
+            } else {
+                // From here on a line means the same as the frame
+                Opcode opcode = Opcode.ofLine(line);
+                if (opcode != null) {
+                    onFrame(opcode, line.substring(opcode.textPrefix.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the frames received since NAMEACCEPTED, which is what a
+     * resume request tells the server.
+     */
+    private void count(Opcode opcode) {
+        if (counting && opcode != Opcode.NAMEACCEPTED) {
+            received++;
+        }
+    }
+
+    /**
+     * Answers SUBMITNAME: resumes the session if there is one, and
+     * otherwise asks the user for a name.  A SUBMITNAME right after a
+     * resume request means the session is gone.
+     */
+    private void submitName() throws IOException {
+        if (resumeToken != null && !resuming) {
+            resuming = true;
+            String request = resumeToken + " " + received;
+            if (binary) {
+                writeFrame(BinaryCodec.encode(Opcode.RESUME, request));
+            } else {
+                out.println(ResumableSession.HANDSHAKE + " " + request);
+            }
+            return;
+        }
+        if (resuming) {
+            resuming = false;
+            resumeToken = null;
+            updates.message("Could not resume the session, please choose a name again");
+        }
+        myName = getName();
+        if (binary) {
+            writeFrame(BinaryCodec.encode(Opcode.NAME, myName));
+        } else {
+            out.println(myName);
+        }
+    }
+
+    /**
+     * The server accepted the name, or the resumed session.  Only the
+     * first NAMEACCEPTED starts the count at zero.
+     */
+    private void nameAccepted(String token) {
+        if (resuming) {
+            resuming = false;
+            updates.message("Reconnected");
+        } else {
+            received = 0;
+        }
+        resumeToken = token.isEmpty() ? null : token;
+        counting = true;
+        reconnects = 0;
+        updates.run(() -> textField.setEditable(true));
+    }
+
+    /**
+     * Handles one frame from the server, or one line of the text
+     * protocol split up by Opcode.ofLine.  The payload of a frame is
+     * exactly the text that follows the prefix in the text protocol.
+     */
+    private void onFrame(Opcode opcode, String payload) throws IOException {
+        switch (opcode) {
+            case SUBMITNAME:
+                submitName();
+                break;
+            case NAMEACCEPTED:
+                nameAccepted(payload);
+                break;
+            case MESSAGE:
+                updates.message(payload);
+                break;
+            case ENTERCLIENT:
                 // TASK 8: Add users to the listBox
-                model.addElement(line.substring(11));
-            }else if (line.startsWith("LEAVECLIENT")) {
+                updates.entered(payload);
+                break;
+            case LEAVECLIENT:
                 // TASK 8: Add users to the listBox
-                model.removeElement(line.substring(11));
-            }
+                updates.left(payload);
+                break;
+            case JOINEDROOM:
+                updates.run(() -> roomJoined(payload));
+                break;
+            case ROOMLIST:
+                updates.run(() -> roomsListed(payload));
+                break;
+            case ROSTER:
+                rosterReceived(payload);
+                break;
+            case PRESENCE:
+                presenceReceived(payload);
+                break;
+            case PING:
+                if (binary) {
+                    writeFrame(BinaryCodec.encode(Opcode.PONG, ""));
+                } else {
+                    out.println(Heartbeats.PONG);
+                }
+                break;
+            default:
+                break;
         }
     }
 
     /**
      * Runs the client as an application with a closeable frame.
+     * Pass --binary to use binary framing and --compress to ask for
+     * compression.
      */
     public static void main(String[] args) throws Exception {
-        ChatClient client = new ChatClient();
+        ChatClient client = new ChatClient(Arrays.asList(args).contains("--binary"),
+                Arrays.asList(args).contains("--compress"));
         client.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         client.frame.setVisible(true);
         client.run();
@@ -0,0 +1,203 @@
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ * Exports what happens in the chat to a JMS topic on an ActiveMQ
+ * broker, for consumers such as analytics.  Enabled with
+ * --events-broker, for example
+ *
+ *     --events-broker=tcp://localhost:61616 --events-topic=chat.events
+ *
+ * Every event is one persistent TextMessage.  The body is the chat
+ * text (empty for joins and leaves) and the properties say what
+ * happened, so consumers can pick events with a message selector such
+ * as "type = 'MESSAGE' AND room = 'lobby'":
+ *
+ *     type      MESSAGE, PRIVATE, JOIN or LEAVE
+ *     name      the client the event is about (the sender of a message)
+ *     room      the room of a MESSAGE
+ *     receiver  the receiver of a PRIVATE message
+ *     node      the node the client is connected to
+ *     time      when it happened, in milliseconds since the epoch
+ *
+ * Each node only exports what its own clients do, so a cluster exports
+ * every event exactly once.  A consumer that must not miss events while
+ * it is down should subscribe durably.
+ *
+ * Chat threads only put events into a bounded buffer and never wait,
+ * so a slow or unreachable broker cannot slow the chat down; when the
+ * buffer is full, events are dropped and counted.  One thread takes
+ * what has piled up, up to --events-batch events at a time, and sends
+ * them in one transaction, which costs one round trip to the broker
+ * per batch instead of one per event.  If the broker goes away the
+ * batch is kept and sent again after reconnecting, so an event may be
+ * exported twice but is not lost unless the buffer overflows.
+ */
+final class ChatEventPublisher {
+
+    private static final long RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+
+    /**
+     * One thing that happened, as handed over by the chat threads.
+     */
+    private static final class Event {
+        final String type;
+        final String name;
+        final String room;
+        final String receiver;
+        final String text;
+        final long time = System.currentTimeMillis();
+
+        Event(String type, String name, String room, String receiver, String text) {
+            this.type = type;
+            this.name = name;
+            this.room = room;
+            this.receiver = receiver;
+            this.text = text;
+        }
+    }
+
+    private final String brokerUrl;
+    private final String topic;
+    private final String node;
+    private final int batchSize;
+    private final ArrayBlockingQueue<Event> buffer;
+    private final ServerMetrics metrics;
+
+    // Only used by the publishing thread
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+
+    ChatEventPublisher(ServerConfig config, ServerMetrics metrics) {
+        this.brokerUrl = config.eventsBroker;
+        this.topic = config.eventsTopic;
+        this.node = config.nodeId;
+        this.batchSize = config.eventsBatch;
+        this.buffer = new ArrayBlockingQueue<>(config.eventsBuffer);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts the publishing thread.  Connecting happens there, so the
+     * server starts even if the broker is down.
+     */
+    void start() {
+        Thread thread = new Thread(this::run, "chat-events");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Chat events are exported to " + topic + " on " + brokerUrl);
+    }
+
+    // ---- called by the chat threads, never block ----
+
+    void message(String name, String room, String text) {
+        add(new Event("MESSAGE", name, room, null, text));
+    }
+
+    void privateMessage(String name, String receiver, String text) {
+        add(new Event("PRIVATE", name, null, receiver, text));
+    }
+
+    void joined(String name) {
+        add(new Event("JOIN", name, null, null, ""));
+    }
+
+    void left(String name) {
+        add(new Event("LEAVE", name, null, null, ""));
+    }
+
+    private void add(Event event) {
+        if (!buffer.offer(event)) {
+            metrics.eventDropped();
+        }
+    }
+
+    // ---- the publishing thread ----
+
+    private void run() {
+        List<Event> batch = new ArrayList<>(batchSize);
+        long retryMillis = RETRY_MILLIS;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(buffer.take());
+                    buffer.drainTo(batch, batchSize - 1);
+                }
+                if (producer == null) {
+                    connect();
+                }
+                send(batch);
+                metrics.eventsPublished(batch.size());
+                batch.clear();
+                retryMillis = RETRY_MILLIS;
+            } catch (JMSException e) {
+                System.out.println("Cannot export chat events to " + brokerUrl + ", retrying in "
+                        + retryMillis + " ms: " + e);
+                metrics.eventExportFailed();
+                disconnect();
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                retryMillis = Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                disconnect();
+                return;
+            }
+        }
+    }
+
+    private void connect() throws JMSException {
+        connection = new ActiveMQConnectionFactory(brokerUrl).createConnection();
+        connection.start();
+        session = connection.createSession(true, Session.SESSION_TRANSACTED);
+        producer = session.createProducer(session.createTopic(topic));
+        producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+    }
+
+    /**
+     * Sends the batch as one transaction.
+     */
+    private void send(List<Event> batch) throws JMSException {
+        for (Event event : batch) {
+            TextMessage message = session.createTextMessage(event.text);
+            message.setStringProperty("type", event.type);
+            message.setStringProperty("name", event.name);
+            if (event.room != null) {
+                message.setStringProperty("room", event.room);
+            }
+            if (event.receiver != null) {
+                message.setStringProperty("receiver", event.receiver);
+            }
+            message.setStringProperty("node", node);
+            message.setLongProperty("time", event.time);
+            producer.send(message);
+        }
+        session.commit();
+    }
+
+    private void disconnect() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+            }
+        }
+        connection = null;
+        session = null;
+        producer = null;
+    }
+}
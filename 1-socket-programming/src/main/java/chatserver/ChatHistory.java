@@ -0,0 +1,349 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The room messages of the server, kept so that a client joining a
+ * room can be shown what was said there recently.
+ *
+ * Every message is appended to a log of memory-mapped segment files
+ * in the history directory.  A segment has a fixed size; when the next
+ * record does not fit, the segment is forced to disk and a new one is
+ * started, so old segments never change and can be archived or
+ * deleted while the server runs.  The most recent messages are also
+ * kept in a ring buffer, and most replays are served from memory.
+ * Only when the ring does not reach back far enough are the segments
+ * read, newest first, each one front to back, stopping at the first
+ * segment that is entirely too old.  Nothing older than what is
+ * replayed is loaded.  Reads go through their own read-only mappings,
+ * which see the appends made through the writable one.
+ *
+ * A replay never reads more than the newest scanSegments segments, and
+ * the history remembers the newest segment each room has messages in,
+ * so a replay for a new or quiet room starts there or reads nothing at
+ * all instead of going through the whole directory.  The segments a
+ * previous run left behind are indexed this way on opening, as far
+ * back as a replay could reach.
+ *
+ * A record is
+ *
+ *     int     length of the rest of the record (0 marks the end)
+ *     long    sequence number, one more than the record before
+ *     long    time the message was sent, epoch millis
+ *     short   length of the room name, then its UTF-8 bytes
+ *     bytes   the UTF-8 message text
+ *
+ * The ChatRouter appends and replays on a thread of its own, so when a
+ * full segment is forced to disk only the history waits, never the
+ * threads serving clients.  The public methods still synchronize on
+ * the history and can be called from any thread.  Disk reads for a
+ * replay happen outside the lock.
+ */
+final class ChatHistory {
+
+    private static final String PREFIX = "history-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 4 + 8 + 8 + 2;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * One recorded message.
+     */
+    static final class Entry {
+        final long sequence;
+        final long time;
+        final String room;
+        final String text;
+
+        Entry(long sequence, long time, String room, String text) {
+            this.sequence = sequence;
+            this.time = time;
+            this.room = room;
+            this.text = text;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int scanSegments;
+
+    /**
+     * The newest segment holding a message of each room, for the rooms
+     * that have one in the segments a replay may read.
+     */
+    private final HashMap<String, Long> newestSegmentOf = new HashMap<>();
+
+    private final Entry[] ring;
+    private int ringHead;
+    private int ringSize;
+
+    /**
+     * False once messages exist that are on disk but no longer in the
+     * ring, either from an earlier run or pushed out of the ring.
+     */
+    private boolean ringHoldsAll = true;
+    private long nextSequence;
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentIndex;
+
+    /**
+     * Opens the history in the directory, creating it if needed, and
+     * continues the newest segment found there.
+     *
+     * @param scanSegments how many of the newest segments a replay may
+     *                     read at most
+     */
+    ChatHistory(Path directory, int segmentSize, int ringCapacity, int scanSegments) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("History segments must be at least " + MIN_SEGMENT_SIZE + " bytes");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.scanSegments = scanSegments;
+        this.ring = new Entry[ringCapacity];
+        Files.createDirectories(directory);
+
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            ringHoldsAll = false;
+            Path newest = segments.get(segments.size() - 1);
+            for (Path older : segments.subList(Math.max(0, segments.size() - scanSegments), segments.size())) {
+                indexRooms(older);
+            }
+            openSegment(indexOf(newest));
+            // Continue after the last record
+            while (segment.remaining() >= HEADER) {
+                int length = segment.getInt(segment.position());
+                if (length <= 0) {
+                    break;
+                }
+                nextSequence = segment.getLong(segment.position() + 4) + 1;
+                segment.position(segment.position() + 4 + length);
+            }
+        }
+    }
+
+    /**
+     * Records a message sent to a room at the given time, in epoch
+     * millis.
+     */
+    synchronized void append(String room, String text, long time) {
+        long sequence = nextSequence++;
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER - 4 + roomBytes.length + textBytes.length;
+        try {
+            // Keep room for the end marker
+            if (4 + length + 4 > segmentSize) {
+                System.out.println("Message too long for the chat history, not recorded");
+            } else {
+                if (segment.remaining() < 4 + length + 4) {
+                    roll();
+                }
+                // The length goes in last, so a concurrent replay never
+                // sees a record that is only half written
+                int start = segment.position();
+                segment.position(start + 4);
+                segment.putLong(sequence).putLong(time).putShort((short) roomBytes.length).put(roomBytes).put(textBytes);
+                segment.putInt(start, length);
+                newestSegmentOf.put(room, segmentIndex);
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot write the chat history: " + e);
+        }
+
+        if (ringSize == ring.length) {
+            ringHoldsAll = false;
+        } else {
+            ringSize++;
+        }
+        ring[ringHead] = new Entry(sequence, time, room, text);
+        ringHead = (ringHead + 1) % ring.length;
+    }
+
+    /**
+     * The last messages of a room, oldest first: at most count of them,
+     * and if maxAgeMillis is positive none older than that.
+     */
+    List<Entry> recent(String room, int count, long maxAgeMillis) {
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        ArrayDeque<Entry> found = new ArrayDeque<>();
+        List<Path> older;
+        long before;
+        synchronized (this) {
+            boolean reachedCutoff = false;
+            for (int i = 1; i <= ringSize && found.size() < count; i++) {
+                Entry entry = ring[(ringHead - i + ring.length) % ring.length];
+                if (entry.time < cutoff) {
+                    reachedCutoff = true;
+                    break;
+                }
+                if (entry.room.equals(room)) {
+                    found.addFirst(entry);
+                }
+            }
+            Long newest = newestSegmentOf.get(room);
+            if (found.size() == count || reachedCutoff || ringHoldsAll || newest == null) {
+                return new ArrayList<>(found);
+            }
+            // Everything in the ring has been looked at; what is missing
+            // was written before the oldest ring entry, in the segments
+            // from the room's newest back to the oldest one a replay may
+            // read
+            before = ringSize == 0 ? Long.MAX_VALUE : oldestInRing().sequence;
+            long oldest = segmentIndex - scanSegments + 1;
+            older = new ArrayList<>();
+            try {
+                for (Path path : segments()) {
+                    long index = indexOf(path);
+                    if (index >= oldest && index <= newest) {
+                        older.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot read the chat history: " + e);
+                return new ArrayList<>(found);
+            }
+        }
+        readSegments(older, room, count, cutoff, before, found);
+        return new ArrayList<>(found);
+    }
+
+    /**
+     * Adds records to the front of found from the segments, newest
+     * segment first, until found holds count entries or the cutoff is
+     * reached.  Only records numbered below before are taken, the
+     * later ones came from the ring already.
+     */
+    private void readSegments(List<Path> segments, String room, int count, long cutoff, long before,
+                              ArrayDeque<Entry> found) {
+        for (int i = segments.size() - 1; i >= 0 && found.size() < count; i--) {
+            ArrayDeque<Entry> matches = new ArrayDeque<>();
+            long newestInSegment = Long.MIN_VALUE;
+            try (FileChannel file = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                while (data.remaining() >= HEADER) {
+                    int length = data.getInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    int next = data.position() + length;
+                    long sequence = data.getLong();
+                    long time = data.getLong();
+                    newestInSegment = Math.max(newestInSegment, time);
+                    if (sequence < before && time >= cutoff
+                            && room.equals(readString(data, data.getShort() & 0xFFFF))) {
+                        matches.addLast(new Entry(sequence, time, room, readString(data, next - data.position())));
+                        // Only the last few of this segment can be needed
+                        if (matches.size() > count - found.size()) {
+                            matches.removeFirst();
+                        }
+                    }
+                    data.position(next);
+                }
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                System.out.println("Skipping damaged history segment " + segments.get(i) + ": " + e);
+            }
+            while (!matches.isEmpty()) {
+                found.addFirst(matches.removeLast());
+            }
+            if (newestInSegment < cutoff) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notes the rooms that have messages in a segment left by an earlier
+     * run.
+     */
+    private void indexRooms(Path path) {
+        long index = indexOf(path);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            while (data.remaining() >= HEADER) {
+                int length = data.getInt();
+                if (length <= 0) {
+                    break;
+                }
+                int next = data.position() + length;
+                data.position(data.position() + 16);
+                newestSegmentOf.put(readString(data, data.getShort() & 0xFFFF), index);
+                data.position(next);
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("Skipping damaged history segment " + path + ": " + e);
+        }
+    }
+
+    private static String readString(ByteBuffer data, int length) {
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Entry oldestInRing() {
+        return ring[(ringHead - ringSize + ring.length) % ring.length];
+    }
+
+    /**
+     * Forces the current segment out and starts the next one.
+     */
+    private void roll() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment(segmentIndex + 1);
+        // Forget rooms whose newest messages a replay can no longer reach
+        long oldest = segmentIndex - scanSegments + 1;
+        newestSegmentOf.values().removeIf(index -> index < oldest);
+    }
+
+    private void openSegment(long index) throws IOException {
+        segmentIndex = index;
+        Path path = directory.resolve(String.format("%s%012d%s", PREFIX, index, SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /**
+     * The segment files, oldest first.
+     */
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // The index is zero padded, so the names sort in order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
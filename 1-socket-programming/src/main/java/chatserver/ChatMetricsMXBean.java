@@ -0,0 +1,132 @@
+package chatserver;
+
+import java.util.Map;
+
+/**
+ * What the chat server shows in JConsole or any other JMX client,
+ * under chatserver:type=ChatServer.  The same numbers are served as
+ * plain text by --metrics-port; see ServerMetrics.
+ *
+ * JMX requires the interface to be public.
+ */
+public interface ChatMetricsMXBean {
+
+    long getActiveConnections();
+
+    int getRegisteredNames();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getPrivateMessages();
+
+    long getBroadcastMessages();
+
+    /**
+     * Private messages as a share of all chat messages, 0 to 1.
+     */
+    double getPrivateRatio();
+
+    /**
+     * Frames waiting to be written, by client name.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * How often reading from a client was paused for its rate limits.
+     */
+    long getThrottles();
+
+    long getThrottledMillis();
+
+    /**
+     * Time reading was paused, by client name, for the clients that
+     * have been throttled.
+     */
+    Map<String, Long> getThrottledMillisByClient();
+
+    long getPingsSent();
+
+    /**
+     * Clients disconnected because they sent nothing, not even PONG,
+     * for the read timeout.
+     */
+    long getReadTimeouts();
+
+    /**
+     * Clients disconnected because they did not chat for the idle
+     * timeout.
+     */
+    long getIdleTimeouts();
+
+    long getSessionsResumed();
+
+    /**
+     * Clients that tried to resume a session that had ended or could no
+     * longer catch them up, and joined again instead.
+     */
+    long getResumesRefused();
+
+    /**
+     * Sessions that ended because nobody resumed them in the grace
+     * period.
+     */
+    long getSessionsExpired();
+
+    /**
+     * Chat events the broker has accepted.
+     */
+    long getEventsPublished();
+
+    /**
+     * Chat events lost because the broker could not keep up and the
+     * export buffer was full.
+     */
+    long getEventsDropped();
+
+    /**
+     * Times connecting or sending to the events broker failed.
+     */
+    long getEventExportFailures();
+
+    /**
+     * Room messages not recorded, or replays skipped, because the disk
+     * could not keep up and the history thread's backlog was full.
+     */
+    long getHistoryDropped();
+
+    long getBroadcastFanOutMicrosP50();
+
+    long getBroadcastFanOutMicrosP99();
+
+    long getBroadcastFanOutMicrosMax();
+
+    long getJoinMicrosP50();
+
+    long getJoinMicrosP99();
+
+    long getJoinMicrosMax();
+
+    long getCompressedConnections();
+
+    /**
+     * Bytes not sent or received thanks to compression, both ways.
+     */
+    long getCompressionBytesSaved();
+
+    /**
+     * Compressed size of everything deflated, as a share of its raw
+     * size.
+     */
+    double getCompressionRatioOut();
+
+    /**
+     * Time spent in the deflater and inflater.
+     */
+    long getCompressionCpuMillis();
+}
@@ -0,0 +1,394 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * What the chat server does with the input of a client, independent
+ * of the engine that read it and of the wire format it came in.
+ * Joining announces the new client to everybody, plain messages go to
+ * everybody in the sender's room and private messages go to one
+ * receiver and back to the sender.  Presence (ENTERCLIENT and
+ * LEAVECLIENT, or ROSTER and PRESENCE, see Presence) is server wide,
+ * so private messages work across rooms.
+ *
+ * When the server is part of a cluster all of this also reaches the
+ * clients of the other nodes through the ClusterNode, and names are
+ * unique across the whole cluster.
+ *
+ * With a history, room messages are also recorded, and a client
+ * entering a room is shown what was said there recently.  Both may
+ * wait for the disk, so they happen one after the other on a thread of
+ * their own rather than the engine's, and the replay can arrive after
+ * the first live messages of the room.  When the disk falls so far
+ * behind that the thread's backlog is full, messages go unrecorded
+ * and replays are skipped rather than slowing the chat down.
+ *
+ * With --events-broker, messages, joins and leaves are also exported
+ * to a JMS topic by the ChatEventPublisher.
+ *
+ * A client with a ResumableSession stays in the chat for a while after
+ * losing its connection and can pick up where it left off.
+ */
+final class ChatRouter {
+
+    /**
+     * Room messages and replays waiting for the history thread at most.
+     */
+    private static final int HISTORY_BACKLOG = 10_000;
+
+    private final ClientRegistry registry = new ClientRegistry();
+    private final ServerMetrics metrics = new ServerMetrics(registry);
+    private final Rooms rooms;
+    private final Presence presence;
+    private final Heartbeats heartbeats;
+
+    /**
+     * Runs the heartbeats and ends sessions nobody resumed, or null if
+     * neither is enabled.
+     */
+    private final HashedWheelTimer timer;
+
+    /**
+     * The sessions that can be resumed, by token.
+     */
+    private final ConcurrentHashMap<String, ResumableSession> resumable = new ConcurrentHashMap<>();
+
+    /**
+     * The link to the other nodes, or null when running alone.
+     */
+    private final ClusterNode cluster;
+
+    /**
+     * The recorded room messages, or null when there is no history.
+     */
+    private ChatHistory history;
+
+    /**
+     * Records room messages and replays them to clients entering a
+     * room, or null when there is no history.
+     */
+    private ExecutorService historyThread;
+
+    /**
+     * Exports chat events, or null when there is no events broker.
+     */
+    private final ChatEventPublisher events;
+
+    private final ServerConfig config;
+
+    ChatRouter(ServerConfig config) {
+        this.config = config;
+        this.rooms = new Rooms(config, metrics.fanOut);
+        this.presence = new Presence(registry, config.presenceWindowMillis);
+        boolean timed = config.pingIntervalSeconds > 0 || config.readTimeoutSeconds > 0
+                || config.idleTimeoutSeconds > 0 || config.resumeGraceSeconds > 0;
+        this.timer = timed ? new HashedWheelTimer("chat-timer", 100, TimeUnit.MILLISECONDS, 512) : null;
+        this.heartbeats = new Heartbeats(config, metrics, timer);
+        this.cluster = config.clusterPort > 0 ? new ClusterNode(config, this) : null;
+        // Only touches the JMS classes when enabled, so the server runs
+        // without them on the class path
+        this.events = config.eventsBroker != null ? new ChatEventPublisher(config, metrics) : null;
+    }
+
+    /**
+     * Publishes the metrics, opens the history, connects to the cluster
+     * and starts exporting events, if there are any.  Called by the engine before it
+     * accepts clients.
+     */
+    void start() throws IOException {
+        metrics.start(config);
+        if (config.historyDir != null) {
+            history = new ChatHistory(Paths.get(config.historyDir), config.historySegmentMb * 1024 * 1024,
+                    config.historyRing, config.historyScanSegments);
+            historyThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(HISTORY_BACKLOG), runnable -> {
+                        Thread thread = new Thread(runnable, "chat-history");
+                        thread.setDaemon(true);
+                        return thread;
+                    }, (task, executor) -> metrics.historyDropped());
+        }
+        if (cluster != null) {
+            cluster.start();
+        }
+        if (events != null) {
+            events.start();
+        }
+    }
+
+    ServerConfig config() {
+        return config;
+    }
+
+    ClientRegistry registry() {
+        return registry;
+    }
+
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    Heartbeats heartbeats() {
+        return heartbeats;
+    }
+
+    HashedWheelTimer timer() {
+        return timer;
+    }
+
+    /**
+     * Tries to give the name to the session.  The outcome is passed to
+     * the callback first, so the caller can record the name, and only
+     * then does the client get NAMEACCEPTED and the current client
+     * list, and everybody else is told about the new client.
+     *
+     * In a cluster the other nodes must agree, so the callback may run
+     * later on another thread.
+     *
+     * @param roster true if the client gets ROSTER and PRESENCE frames
+     *               instead of one ENTERCLIENT per client
+     */
+    void join(ClientSession session, String name, boolean roster, Consumer<Boolean> done) {
+        long submitted = System.nanoTime();
+        Consumer<Boolean> welcome = granted -> {
+            done.accept(granted);
+            if (granted) {
+                welcome(session, name, roster);
+                metrics.join.recordSince(submitted);
+            }
+        };
+        if (cluster == null) {
+            welcome.accept(registry.claim(name, session));
+        } else {
+            cluster.claim(name, session, welcome);
+        }
+    }
+
+    private void welcome(ClientSession session, String name, boolean roster) {
+        if (session instanceof ResumableSession resumed) {
+            resumable.put(resumed.token, resumed);
+            session.send(resumed.accepted());
+        } else {
+            session.send(Frame.of(Opcode.NAMEACCEPTED));
+        }
+
+        // Update own client list
+        if (roster) {
+            presence.subscribe(session);
+        } else {
+            for (String clientName : registry.names()) {
+                if (!clientName.equals(name)) {
+                    session.send(Frame.of(Opcode.ENTERCLIENT, clientName));
+                }
+            }
+            if (cluster != null) {
+                for (String clientName : cluster.remoteNames()) {
+                    session.send(Frame.of(Opcode.ENTERCLIENT, clientName));
+                }
+            }
+        }
+        if (cluster != null) {
+            cluster.announceJoin(name);
+        }
+        replay(session, Rooms.LOBBY);
+        // Update others client list and notify
+        presence.entered(name, session);
+        if (events != null) {
+            events.joined(name);
+        }
+    }
+
+    /**
+     * Sends the recent messages of the room to a client entering it,
+     * from the history thread.
+     */
+    private void replay(ClientSession session, String room) {
+        if (history == null) {
+            return;
+        }
+        long maxAge = TimeUnit.MINUTES.toMillis(config.historyMinutes);
+        historyThread.execute(() -> {
+            for (ChatHistory.Entry entry : history.recent(room, config.historyReplay, maxAge)) {
+                session.send(Frame.message(entry.text));
+            }
+        });
+    }
+
+    /**
+     * Puts a newly named client into the lobby.
+     */
+    Rooms.Room enterLobby(ClientSession session) {
+        return rooms.enter(Rooms.LOBBY, session);
+    }
+
+    /**
+     * Moves the client from its current room to another one and
+     * confirms with JOINEDROOM.
+     *
+     * @return the room the client is in afterwards
+     */
+    Rooms.Room changeRoom(ClientSession session, Rooms.Room current, String target) {
+        if (!Rooms.isValidName(target)) {
+            session.send(Frame.message("\"" + target + "\" is not a valid room name"));
+            return current;
+        }
+        Rooms.Room next = current;
+        if (!target.equals(current.name)) {
+            next = rooms.enter(target, session);
+            rooms.exit(current, session);
+        }
+        session.send(Frame.of(Opcode.JOINEDROOM, next.name));
+        if (next != current) {
+            replay(session, next.name);
+        }
+        return next;
+    }
+
+    /**
+     * Answers a room list request with ROOMLIST.
+     */
+    void listRooms(ClientSession session) {
+        session.send(Frame.of(Opcode.ROOMLIST, rooms.list()));
+    }
+
+    /**
+     * Answers a roster request with a fresh ROSTER.
+     */
+    void sendRoster(ClientSession session) {
+        presence.resend(session);
+    }
+
+    /**
+     * Sends the text to everybody in the room, the sender included.
+     * Lobby messages look exactly like they did before there were
+     * rooms.
+     */
+    void broadcast(ClientSession sender, Rooms.Room room, String text) {
+        String prefix = room.name.equals(Rooms.LOBBY) ? "" : "[" + room.name + "] ";
+        Frame message = Frame.message(prefix + sender.name() + ": " + text);
+        metrics.broadcastMessage();
+        room.broadcast(message);
+        record(room.name, message.payload());
+        if (cluster != null) {
+            cluster.relayRoom(room.name, message.payload());
+        }
+        if (events != null) {
+            events.message(sender.name(), room.name, text);
+        }
+    }
+
+    /**
+     * Has the history thread record a room message, stamped with the
+     * time it was sent rather than written.
+     */
+    private void record(String room, String text) {
+        if (history != null) {
+            long time = System.currentTimeMillis();
+            historyThread.execute(() -> history.append(room, text, time));
+        }
+    }
+
+    /**
+     * TASK 7: Forwards the text to the receiver and echoes it to the
+     * sender, or tells the sender that there is nobody of that name.
+     */
+    void privateMessage(ClientSession sender, String receiverName, String text) {
+        metrics.privateMessage();
+
+        ClientSession receiver = registry.get(receiverName);
+        Frame message = Frame.message(" [Private]: " + receiverName + ">>" + text);
+        if (receiver != null) {
+            receiver.send(message);
+            sender.send(message);
+            exportPrivate(sender, receiverName, text);
+        } else if (cluster != null && cluster.relayPrivate(receiverName, message.payload())) {
+            sender.send(message);
+            exportPrivate(sender, receiverName, text);
+        } else {
+            sender.send(Frame.message(receiverName + " is not found"));
+        }
+    }
+
+    private void exportPrivate(ClientSession sender, String receiverName, String text) {
+        if (events != null) {
+            events.privateMessage(sender.name(), receiverName, text);
+        }
+    }
+
+    /**
+     * TASK 8: Frees the name of a client that went away and updates
+     * everybody else's client list.
+     */
+    void leave(ClientSession session, String name, Rooms.Room room) {
+        rooms.exit(room, session);
+        presence.unsubscribe(session);
+        if (registry.release(name, session)) {
+            if (cluster != null) {
+                cluster.announceLeave(name);
+            }
+            presence.left(name);
+            if (events != null) {
+                events.left(name);
+            }
+        }
+    }
+
+    /**
+     * The session with the token, or null if there is none or it has
+     * ended.
+     */
+    ResumableSession resumable(String token) {
+        return resumable.get(token);
+    }
+
+    /**
+     * A resumable session is over; the client leaves like any other.
+     */
+    void ended(ResumableSession session) {
+        resumable.remove(session.token, session);
+        leave(session, session.name(), session.room);
+    }
+
+    // ---- called by the ClusterNode for traffic from other nodes ----
+
+    /**
+     * A client joined on another node.
+     */
+    void remoteJoined(String name) {
+        presence.entered(name, null);
+    }
+
+    /**
+     * A client left another node, or the node itself went away.
+     */
+    void remoteLeft(String name) {
+        presence.left(name);
+    }
+
+    /**
+     * A message for a room, sent by a client on another node.
+     */
+    void deliverRoom(String room, String text) {
+        record(room, text);
+        Rooms.Room local = rooms.find(room);
+        if (local != null) {
+            local.broadcast(Frame.message(text));
+        }
+    }
+
+    /**
+     * A private message for a client that may live on this node.
+     */
+    void deliverPrivate(String receiverName, String text) {
+        ClientSession receiver = registry.get(receiverName);
+        if (receiver != null) {
+            receiver.send(Frame.message(text));
+        }
+    }
+}
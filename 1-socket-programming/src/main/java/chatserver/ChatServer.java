@@ -1,15 +1,14 @@
 package chatserver;
 
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A multithreaded chat room server.  When a client connects the
@@ -21,6 +20,10 @@ import java.util.Map;
  * clients that have submitted a unique screen name.  The
  * broadcast messages are prefixed with "MESSAGE ".
  *
+ * Clients may instead ask for length-prefixed binary frames by
+ * answering the first SUBMITNAME with "PROTOCOL BINARY"; see
+ * BinaryCodec.
+ *
  * Because this is just a teaching example to illustrate a simple
  * chat server, there are a few features that have been left out.
  * Two are very useful and belong in production code:
@@ -31,45 +34,41 @@ import java.util.Map;
  *     2. The server should do some logging.
  */
 public class ChatServer {
-    // TASK 6: For thread security
-    private static final Object stateLock = new Object();
-
-    // TASK 7: List of writers alongside there usernames
-    private static HashMap<String, PrintWriter> writersWithNames = new HashMap<>();
-
-    /**
-     * The port that the server listens on.
-     */
-    private static final int PORT = 9001;
-
-    /**
-     * The set of all names of clients in the chat room.  Maintained
-     * so that we can check that new clients are not registering name
-     * already in use.
-     */
-    private static HashSet<String> names = new HashSet<String>();
-
-    /**
-     * The set of all the print writers for all the clients.  This
-     * set is kept so we can easily broadcast messages.
-     */
-    private static HashSet<PrintWriter> writers = new HashSet<PrintWriter>();
 
     /**
      * The appplication main method, which just listens on a port and
-     * spawns handler threads.
+     * hands every client to a Handler.  Which threads run the Handlers
+     * is chosen with --threads=platform|pooled|virtual.  Passing
+     * --engine=nio runs the selector based NioChatServer instead; see
+     * ServerConfig for all options.
      */
     public static void main(String[] args) throws Exception {
-        System.out.println("The chat server is running.");
-        ServerSocket listener = new ServerSocket(PORT);
+        ServerConfig config = ServerConfig.parse(args);
+        if (config.engine == ServerConfig.Engine.NIO) {
+            new NioChatServer(config).run();
+            return;
+        }
+
+        // TASK 6 + 7: Every named client lives in the router's registry,
+        // which replaced the names, writers and writersWithNames sets
+        ChatRouter router = new ChatRouter(config);
+        router.start();
+        ExecutorService handlers = HandlerExecutors.create(config);
+        ExecutorService writers = HandlerExecutors.create(config);
+        if (config.statsInterval > 0) {
+            router.metrics().flushStats.reportEvery(config.statsInterval);
+        }
+        System.out.println("The chat server is running with " + config.threads.name().toLowerCase() + " threads.");
+        ServerSocket listener = new ServerSocket(config.port);
         try {
             while (true) {
                 Socket socket  = listener.accept();
-                Thread handlerThread = new Thread(new Handler(socket));
-                handlerThread.start();
+                handlers.execute(new Handler(socket, config, router, writers));
             }
         } finally {
             listener.close();
+            handlers.shutdown();
+            writers.shutdown();
         }
     }
 
@@ -77,167 +76,244 @@ public class ChatServer {
      * A handler thread class.  Handlers are spawned from the listening
      * loop and are responsible for a dealing with a single client
      * and broadcasting its messages.
+     *
+     * Frames for the client, including the ones from other Handlers,
+     * go through its OutboundQueue and are written by a separate writer
+     * task, so a client that stops reading only fills its own queue.
+     * With --flush=batched the writer collects whatever is queued into
+     * one buffered write instead of writing every frame on its own.
+     *
+     * On a compressed connection the reader inflates through its
+     * ProtocolReader and the writer deflates each batch (or, without
+     * batching, each frame) before writing it.
      */
-    private static class Handler implements Runnable {
-        private String name;
-        private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
+    private static class Handler implements Runnable, ClientSession {
+
+        /**
+         * A batch is flushed after this many frames even if more are
+         * waiting, so the first of them is not held back for too long.
+         */
+        private static final int MAX_BATCH_FRAMES = 256;
+        private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+        private final Socket socket;
+        private final ClientProtocol protocol;
+        private OutputStream out;
+        private final OutboundQueue queue;
+        private final ExecutorService writers;
+        private final boolean batched;
+        private final long flushWindowMillis;
+        private final ServerMetrics metrics;
+        private final FlushStats flushStats;
+        private final int compressionLevel;
+
+        /**
+         * Deflates what the writer writes, once the client has asked
+         * for compression.  Only used by the writer.
+         */
+        private DeflateCodec.Compressor compressor;
+
+        /**
+         * Inflates what the client sends, once it has asked for
+         * compression.  Only used by the reader.
+         */
+        private DeflateCodec.Decompressor decompressor;
 
         /**
          * Constructs a handler thread, squirreling away the socket.
          * All the interesting work is done in the run method.
          */
-        public Handler(Socket socket) {
+        public Handler(Socket socket, ServerConfig config, ChatRouter router, ExecutorService writers) {
             this.socket = socket;
+            this.queue = new OutboundQueue(config.queueCapacity, config.slowConsumer);
+            this.protocol = new ClientProtocol(router, this, queue);
+            this.writers = writers;
+            this.batched = config.flush == ServerConfig.Flush.BATCHED;
+            this.flushWindowMillis = config.flushWindowMillis;
+            this.metrics = router.metrics();
+            this.flushStats = metrics.flushStats;
+            this.compressionLevel = config.compressionLevel;
+        }
+
+        public String name() {
+            return protocol.name();
+        }
+
+        public void send(Frame frame) {
+            metrics.frameOut();
+            if (!queue.offer(frame) && !socket.isClosed()) {
+                System.out.println("Disconnecting slow client " + name());
+                closeSocket();
+            }
+        }
+
+        public int queueDepth() {
+            return queue.depth();
+        }
+
+        public long droppedLines() {
+            return queue.dropped();
+        }
+
+        public long throttledNanos() {
+            return protocol.throttledNanos();
         }
 
         /**
-         * Services this thread's client by repeatedly requesting a
-         * screen name until a unique one has been submitted, then
-         * acknowledges the name and registers the output stream for
-         * the client in a global set, then repeatedly gets inputs and
-         * broadcasts them.
+         * Drains the queue onto the socket until the queue is closed
+         * or the socket fails.  Frames are already encoded, so their
+         * bytes go straight to the socket.
          */
-        public void run() {
+        private void writeQueued() {
             try {
-                // Create character streams for the socket.
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Request a name from this client.  Keep requesting until
-                // a name is submitted that is not already used.  Note that
-                // checking for the existence of a name and adding the name
-                // must be done while locking the set of names.
-                while (true) {
-                    out.println("SUBMITNAME");
-                    name = in.readLine();
-                    if (name == null) {
-                        return;
+                Frame frame;
+                while ((frame = queue.take()) != null) {
+                    if (batched) {
+                        writeBatch(frame);
+                    } else {
+                        long bytes = write(frame);
+                        flushStats.record(1, bytes + writeCompressed());
                     }
+                }
+            } catch (IOException | InterruptedException e) {
+                closeSocket();
+            } finally {
+                if (compressor != null) {
+                    compressor.end();
+                }
+            }
+        }
 
-                    // In order to avoid the race conditions we must adhere a lock.
-                    // Therefore, stateLock is defined and lock is implemented
-                    // the shared variable 'names'
-                    synchronized (stateLock) {
-                        if (!names.contains(name)) {
-                            names.add(name);
-                            break;
-                        }
+        /**
+         * Writes one frame, or only deflates it on a compressed
+         * connection; see writeCompressed.
+         *
+         * @return the number of bytes written
+         */
+        private long write(Frame frame) throws IOException {
+            boolean binary = protocol.isBinary();
+            if (compressor != null) {
+                compressor.add(frame.buffer(binary));
+                return 0;
+            }
+            frame.writeTo(out, binary);
+            if (frame.startsCompression()) {
+                // The answer itself is the last uncompressed frame
+                out.flush();
+                compressor = new DeflateCodec.Compressor(compressionLevel, metrics.compression);
+            }
+            return frame.size(binary);
+        }
+
+        /**
+         * Writes whatever has been deflated since the last call.
+         *
+         * @return the number of bytes written
+         */
+        private long writeCompressed() throws IOException {
+            if (compressor == null || !compressor.pending()) {
+                return 0;
+            }
+            ByteBuffer bytes = compressor.flush();
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return bytes.remaining();
+        }
+
+        /**
+         * Writes the first frame and everything queued behind it, waiting
+         * up to the flush window for more, then flushes once.
+         */
+        private void writeBatch(Frame first) throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushWindowMillis);
+            int frames = 0;
+            long bytes = 0;
+            Frame frame = first;
+            while (frame != null) {
+                bytes += write(frame);
+                frames++;
+                if (frames == MAX_BATCH_FRAMES) {
+                    break;
+                }
+                frame = queue.poll();
+                if (frame == null) {
+                    long left = deadline - System.nanoTime();
+                    if (left > 0) {
+                        frame = queue.poll(left, TimeUnit.NANOSECONDS);
                     }
                 }
+            }
+            bytes += writeCompressed();
+            out.flush();
+            flushStats.record(frames, bytes);
+        }
 
-                // Now that a successful name has been chosen, add the
-                // socket's print writer to the set of all writers so
-                // this client can receive broadcast messages.
-                out.println("NAMEACCEPTED");
-                writers.add(out);
-
-                // TASK 7: Storing socket + name for private communication
-                writersWithNames.put(name, out);
-
-                // TODO: You may have to add some code here to broadcast all clients the new
-                // client's name for the task 9 on the lab sheet.
-                // Update own client list
-                writersWithNames.forEach((clientName, clientWriter) -> {
-                    if(clientName != name){
-                        out.println("ENTERCLIENT" + clientName);
-                    }
-                });
-                // Update others client list and notify
-                writersWithNames.forEach((clientName, clientWriter) -> {
-                    // Notify others new client has joined
-                    if(clientName != name){
-                        clientWriter.println("MESSAGE " + name + " has joined the Chat!");
-                        clientWriter.println("ENTERCLIENT" + name);
-                    }
-                });
+        /**
+         * Closing the socket makes the blocked read fail, which sends
+         * the Handler through its normal clean up.  Also how the
+         * Heartbeats get rid of a client that has gone away.
+         */
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
 
+        /**
+         * Services this thread's client: the protocol keeps requesting
+         * a screen name until a unique one has been submitted, then
+         * every further input is broadcast or sent privately.  Reading
+         * switches from lines to frames if the client asks for binary.
+         */
+        public void run() {
+            metrics.connectionOpened();
+            try {
+                ProtocolReader in = new ProtocolReader(socket.getInputStream());
+                out = batched
+                        ? new BufferedOutputStream(socket.getOutputStream(), BATCH_BUFFER_SIZE)
+                        : socket.getOutputStream();
+                writers.execute(this::writeQueued);
 
-                // Accept messages from this client and broadcast them.
-                // Ignore other clients that cannot be broadcasted to.
+                protocol.start(this::closeSocket);
                 while (true) {
-                    String input = in.readLine();
-                    if (input == null) {
-                        return;
+                    if (protocol.isCompressed() && decompressor == null) {
+                        decompressor = new DeflateCodec.Decompressor(metrics.compression);
+                        in.wrapInput(decompressor::stream);
                     }
-
-                    /** TASK 7
-                     * First we check whether the input contains >> characters
-                     * For instance sunil>>hi means sunil = username and hi = message
-                     * Therefore by considering >> as a delimiter we extract username from the input
-                     * Then check whether it is a valid username in the names list
-                     * IF valid then we obtain the client's socket from socketList hashmap
-                            * Then get the client's print writer
-                            * Then forward the message to the receiver and the sender(self)
-                     * ELSE
-                            * Print a message in the senders window(self) that user is not found
-                     */
-                    if(input.contains(">>")) {
-                        String receiverName = input.substring(0, input.indexOf(">>"));
-                        System.out.println("Private message to --> " + receiverName);
-
-                        // Check whether client with the name exists or not
-                        if(names.contains(receiverName)){
-                            // If client found forward the message to that client
-                            System.out.println("Client found");
-
-                            PrintWriter receiverWriter = writersWithNames.get(receiverName);
-
-                            // Add message to the receiver
-                            receiverWriter.println("MESSAGE " + " [Private]" + ": " + input);
-                            // Add message to the self
-                            out.println("MESSAGE " + " [Private]" + ": " + input);
-                        } else {
-                            // If client not found print client not found in the senders view
-                            System.out.println("Client not exists");
-
-                            // Add message to the self
-                            out.println("MESSAGE " + receiverName + " is not found");
+                    if (protocol.isBinary()) {
+                        if (!in.readFrame()) {
+                            return;
                         }
-                    }
-                    else {
-                        // Send message to all the clients
-                        for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + name + ": " + input);
+                        protocol.onFrame(in.opcode(), in.payload(), in.payloadLength());
+                    } else {
+                        String input = in.readLine();
+                        if (input == null) {
+                            return;
                         }
+                        protocol.onLine(input);
                     }
-                }
-            }
-            catch (IOException e) {
-                // TASK 8
-                // Update others client list and notify
-                writersWithNames.forEach((clientName, clientWriter) -> {
-                    // Notify others new client has joined
-                    if(clientName != name){
-                        clientWriter.println("MESSAGE " + name + " has leave the Chat!");
-                        clientWriter.println("LEAVECLIENT" + name);
+                    // Over a rate limit; the client's sends back up into
+                    // its socket buffers meanwhile
+                    long pause = protocol.takePause();
+                    if (pause > 0) {
+                        TimeUnit.NANOSECONDS.sleep(pause);
                     }
-                });
-
-                try {
-                    in.close();
-                    out.close();
-                } catch (IOException ex) {
-                    ex.getStackTrace();
                 }
+            }
+            catch (IOException | IllegalStateException | InterruptedException e) {
+                // The client is gone or broke the protocol, the finally
+                // block cleans up
             } finally {
-                // This client is going down!  Remove its name and its print
-                // writer from the sets, and close its socket.
-                if (name != null) {
-                    names.remove(name);
-
-                    // remove client from the name+writer hash map
-                    writersWithNames.remove(name);
-                }
-                if (out != null) {
-                    writers.remove(out);
-                }
-                try {
-                    socket.close();
-                } catch (IOException e) {
+                // This client is going down!  Remove it from the
+                // registry, tell the others (TASK 8) and close its socket.
+                protocol.disconnected();
+                queue.close();
+                closeSocket();
+                if (decompressor != null) {
+                    decompressor.end();
                 }
+                metrics.connectionClosed();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,537 @@
+package chatserver;
+
+/**
+ * Interprets what one client sends and turns it into ChatRouter
+ * calls.  It understands both wire formats: the original text lines
+ * and, once the client has asked for it, binary frames (see
+ * BinaryCodec).  Each engine feeds it whatever its decoders produce.
+ *
+ * Before the name it also handles the request for a compressed
+ * connection (see DeflateCodec); the engine then inflates what it
+ * reads and deflates what it writes.
+ *
+ * Once the client has a name, its input is charged to its rate limits
+ * and, for room messages, to the room's (see TokenBucket).  The engine
+ * asks takePause after handing over input and stops reading from the
+ * client for that long.
+ *
+ * A client that asked for a ResumableSession is known to the rest of
+ * the server by that session instead of its connection, and may come
+ * back on a new connection and resume it instead of choosing a name.
+ *
+ * It also keeps the times the Heartbeats look at: when the client last
+ * sent anything, and when it last chatted.
+ *
+ * Screen names and chat text are limited in size (MAX_NAME_BYTES and
+ * MAX_TEXT_BYTES), so that what the server makes of them, such as
+ * "MESSAGE [room] name: text", still fits the MAX_PAYLOAD of
+ * BinaryCodec that every client enforces, whichever wire format it
+ * uses.  Longer text is refused with a note to the sender, and a
+ * longer name with another SUBMITNAME.
+ *
+ * Input arrives on one thread at a time, but name, isBinary,
+ * isCompressed and the times are also read by other threads, hence the
+ * volatile fields.
+ */
+final class ClientProtocol implements LineDecoder.LineHandler, BinaryCodec.FrameHandler {
+
+    /**
+     * The longest screen name, in UTF-8 bytes.
+     */
+    static final int MAX_NAME_BYTES = 64;
+
+    /**
+     * The longest text, message or command, a named client may send, in
+     * UTF-8 bytes.  Leaves room for the longest prefix the server adds:
+     * "MESSAGE [room] name: " with a 32 character room name and a
+     * MAX_NAME_BYTES name, or "MESSAGE  [Private]: " in front of
+     * "receiver>>text".
+     */
+    static final int MAX_TEXT_BYTES = BinaryCodec.MAX_PAYLOAD - 256;
+
+    private final ChatRouter router;
+
+    /**
+     * The connection, and the queue its frames are written from.
+     */
+    private final ClientSession connection;
+    private final OutboundQueue queue;
+
+    /**
+     * What the rest of the server sends to: the connection, or the
+     * ResumableSession once the client has asked for one.
+     */
+    private ClientSession session;
+    private ResumableSession resumable;
+
+    /**
+     * Closes the connection from another thread.
+     */
+    private Runnable evict;
+
+    /**
+     * Set when the client is sent away for good, so its session must
+     * not wait to be resumed.
+     */
+    private volatile boolean ended;
+    private volatile String name;
+    private volatile boolean binary;
+    private volatile boolean compressed;
+
+    /**
+     * True if the client asked for ROSTER and PRESENCE frames.  Only
+     * used by the reading thread.
+     */
+    private boolean roster;
+
+    /**
+     * True while the client waits for the cluster to agree on its name.
+     * Clients do not send anything else until they have an answer, so
+     * any input in the meantime is ignored.
+     */
+    private volatile boolean joining;
+
+    /**
+     * The room the client's plain messages go to, once it has a name.
+     * Set by whichever thread completes the join.
+     */
+    private volatile Rooms.Room room;
+
+    /**
+     * The client's own rate limits, or null where there is none.
+     */
+    private final TokenBucket messageLimit;
+    private final TokenBucket byteLimit;
+
+    /**
+     * How long reading has to pause to get back under the limits.  Only
+     * used by the reading thread.
+     */
+    private long pauseNanos;
+
+    /**
+     * All pauses so far, for the metrics.  Only written by the reading
+     * thread.
+     */
+    private volatile long throttledNanos;
+
+    /**
+     * When the client last sent anything, PONG included, and when it
+     * last sent a message or command, as System.nanoTime.  Both start
+     * at the connection.
+     */
+    private volatile long lastInput = System.nanoTime();
+    private volatile long lastActivity = lastInput;
+
+    private Heartbeats.Watch heartbeat;
+
+    ClientProtocol(ChatRouter router, ClientSession session, OutboundQueue queue) {
+        this.router = router;
+        this.connection = session;
+        this.session = session;
+        this.queue = queue;
+        ServerConfig config = router.config();
+        this.messageLimit = TokenBucket.perSecond(config.clientMessageRate, config.rateBurstSeconds);
+        this.byteLimit = TokenBucket.perSecond(config.clientByteRate, config.rateBurstSeconds);
+    }
+
+    /**
+     * The accepted screen name, or null until the client has one.
+     */
+    String name() {
+        return name;
+    }
+
+    /**
+     * True once the client has switched to binary frames.  Frames for
+     * the client must then be written in the binary encoding.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * True once the client has switched to compression.  Everything
+     * read after the request must then be inflated.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * How long the engine should stop reading from the client, given
+     * what it has sent so far, or 0.  Counts as throttling, so it must
+     * be followed by the pause.
+     */
+    long takePause() {
+        long pause = pauseNanos;
+        if (pause > 0) {
+            pauseNanos = 0;
+            // The client cannot be heard while we are not listening
+            lastInput = System.nanoTime() + pause;
+            throttledNanos += pause;
+            router.metrics().throttled(pause);
+        }
+        return pause;
+    }
+
+    /**
+     * True if the client has gone over a limit and the engine should
+     * stop handing it input until after the pause.
+     */
+    boolean isThrottled() {
+        return pauseNanos > 0;
+    }
+
+    /**
+     * The total time reading from the client has been paused.
+     */
+    long throttledNanos() {
+        return throttledNanos;
+    }
+
+    long lastInput() {
+        return lastInput;
+    }
+
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Charges one message of the given size to the client's limits and
+     * to those of the room it goes to, if any.
+     */
+    private void charge(Rooms.Room target, int size) {
+        long wait = Math.max(take(messageLimit, 1), take(byteLimit, size));
+        if (target != null) {
+            wait = Math.max(wait, Math.max(take(target.messageLimit, 1), take(target.byteLimit, size)));
+        }
+        pauseNanos = Math.max(pauseNanos, wait);
+    }
+
+    private static long take(TokenBucket bucket, int count) {
+        return bucket == null ? 0 : bucket.take(count);
+    }
+
+    /**
+     * Asks a newly connected client for its name and starts its
+     * heartbeat.
+     *
+     * @param evict closes the connection from another thread when the
+     *              client turns out to be gone, see Heartbeats
+     */
+    void start(Runnable evict) {
+        this.evict = evict;
+        heartbeat = router.heartbeats().watch(connection, this, evict);
+        session.send(Frame.of(Opcode.SUBMITNAME));
+    }
+
+    /**
+     * Handles one line of the text protocol.
+     *
+     * @return false if the client has switched to binary or to
+     *         compression, or is over a rate limit
+     */
+    public boolean onLine(String line) {
+        lastInput = System.nanoTime();
+        if (line.equals(Heartbeats.PONG)) {
+            return true;
+        }
+        lastActivity = lastInput;
+        if (joining) {
+            return true;
+        }
+        if (name == null) {
+            if (!binary && !compressed && line.equals(DeflateCodec.HANDSHAKE)) {
+                if (router.config().compression == ServerConfig.Compression.DEFLATE) {
+                    // Acknowledge uncompressed, then continue compressed
+                    session.send(Frame.of(Opcode.PROTOCOL, DeflateCodec.ACCEPTED));
+                    compressed = true;
+                    router.metrics().compression.connectionCompressed();
+                    session.send(Frame.of(Opcode.SUBMITNAME));
+                    return false;
+                }
+                session.send(Frame.of(Opcode.PROTOCOL, DeflateCodec.REFUSED));
+                session.send(Frame.of(Opcode.SUBMITNAME));
+                return true;
+            }
+            if (!binary && line.equals(Presence.HANDSHAKE)) {
+                roster = true;
+                session.send(Frame.of(Opcode.PROTOCOL, Presence.ACCEPTED));
+                session.send(Frame.of(Opcode.SUBMITNAME));
+                return true;
+            }
+            if (!binary && line.equals(ResumableSession.HANDSHAKE)) {
+                if (router.config().resumeGraceSeconds > 0 && resumable == null) {
+                    resumable = new ResumableSession(router, connection, queue, evict, roster);
+                    session = resumable;
+                    session.send(Frame.of(Opcode.PROTOCOL, ResumableSession.ACCEPTED));
+                } else {
+                    session.send(Frame.of(Opcode.PROTOCOL, DeflateCodec.REFUSED));
+                }
+                session.send(Frame.of(Opcode.SUBMITNAME));
+                return true;
+            }
+            if (line.startsWith(ResumableSession.HANDSHAKE + " ")) {
+                resume(line.substring(ResumableSession.HANDSHAKE.length() + 1));
+                return true;
+            }
+            if (!binary && line.equals(BinaryCodec.HANDSHAKE)) {
+                // Acknowledge in text, then continue in binary
+                session.send(Frame.of(Opcode.PROTOCOL, "BINARY"));
+                binary = true;
+                session.send(Frame.of(Opcode.SUBMITNAME));
+                return false;
+            }
+            submitName(line);
+            return true;
+        }
+
+        // Limits are in bytes on the wire, as for binary frames
+        int bytes = utf8Length(line);
+        if (bytes > MAX_TEXT_BYTES) {
+            refuseTooLong();
+            return true;
+        }
+        if (line.startsWith("/") && command(line)) {
+            charge(null, bytes);
+            return !isThrottled();
+        }
+
+        /** TASK 7
+         * First we check whether the input contains >> characters
+         * For instance sunil>>hi means sunil = username and hi = message
+         * Therefore by considering >> as a delimiter we extract username from the input
+         * Binary clients send the receiver as a separate field instead
+         */
+        String receiver = privateReceiver(line);
+        if (receiver != null) {
+            charge(null, bytes);
+            router.privateMessage(session, receiver, privateText(line));
+        } else {
+            charge(room, bytes);
+            router.broadcast(session, room, line);
+        }
+        return !isThrottled();
+    }
+
+    /**
+     * The receiver of a private message in the text protocol, the part
+     * before ">>", or null if the line is for the room.
+     */
+    static String privateReceiver(String line) {
+        int separator = line.indexOf(">>");
+        return separator >= 0 ? line.substring(0, separator) : null;
+    }
+
+    /**
+     * The text of a private message in the text protocol, the part
+     * after the first ">>".
+     */
+    static String privateText(String line) {
+        return line.substring(line.indexOf(">>") + 2);
+    }
+
+    /**
+     * The room commands of the text protocol:
+     *
+     *     /join room   move to the room, creating it if needed
+     *     /leave       go back to the lobby
+     *     /rooms       list all rooms
+     *     /roster      send a fresh ROSTER
+     *
+     * @return false if the line is not a command and should be sent
+     *         as a message instead
+     */
+    private boolean command(String line) {
+        if (line.startsWith("/join ")) {
+            setRoom(router.changeRoom(session, room, line.substring(6).trim()));
+        } else if (line.equals("/leave")) {
+            setRoom(router.changeRoom(session, room, Rooms.LOBBY));
+        } else if (line.equals("/rooms")) {
+            router.listRooms(session);
+        } else if (line.equals("/roster")) {
+            router.sendRoster(session);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Handles one frame of the binary protocol.
+     *
+     * @return false if the client is over a rate limit
+     *
+     * @throws IllegalStateException if the client sent a frame only the
+     *                               server may send
+     */
+    public boolean onFrame(Opcode opcode, byte[] payload, int length) {
+        lastInput = System.nanoTime();
+        if (opcode == Opcode.PONG) {
+            return true;
+        }
+        lastActivity = lastInput;
+        if (joining) {
+            return true;
+        }
+        if (name != null) {
+            if (length > MAX_TEXT_BYTES) {
+                refuseTooLong();
+                return true;
+            }
+            charge(opcode == Opcode.BROADCAST ? room : null, length);
+        }
+        switch (opcode) {
+            case NAME:
+                if (name == null) {
+                    submitName(BinaryCodec.text(payload, length));
+                }
+                break;
+            case RESUME:
+                if (name == null) {
+                    resume(BinaryCodec.text(payload, length));
+                }
+                break;
+            case BROADCAST:
+                if (name != null) {
+                    router.broadcast(session, room, BinaryCodec.text(payload, length));
+                }
+                break;
+            case PRIVATE:
+                if (name != null) {
+                    router.privateMessage(session, BinaryCodec.privateReceiver(payload, length),
+                            BinaryCodec.privateText(payload, length));
+                }
+                break;
+            case JOIN:
+                if (name != null) {
+                    setRoom(router.changeRoom(session, room, BinaryCodec.text(payload, length)));
+                }
+                break;
+            case LEAVE:
+                if (name != null) {
+                    setRoom(router.changeRoom(session, room, Rooms.LOBBY));
+                }
+                break;
+            case LIST:
+                if (name != null) {
+                    router.listRooms(session);
+                }
+                break;
+            case NAMES:
+                if (name != null) {
+                    router.sendRoster(session);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Clients may not send " + opcode);
+        }
+        return !isThrottled();
+    }
+
+    private void refuseTooLong() {
+        session.send(Frame.message("Not sent, longer than " + MAX_TEXT_BYTES + " bytes"));
+    }
+
+    /**
+     * The number of bytes the text takes in UTF-8.
+     */
+    static int utf8Length(String text) {
+        int bytes = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // Three bytes, or four for a surrogate pair of two chars
+                bytes += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Keeps asking for a name until the client submits one that is not
+     * in use.
+     */
+    private void submitName(String candidate) {
+        if (utf8Length(candidate) > MAX_NAME_BYTES) {
+            session.send(Frame.of(Opcode.SUBMITNAME));
+            return;
+        }
+        joining = true;
+        router.join(session, candidate, roster, granted -> {
+            if (granted) {
+                name = candidate;
+                if (resumable != null) {
+                    resumable.named(candidate);
+                }
+                setRoom(router.enterLobby(session));
+            } else {
+                session.send(Frame.of(Opcode.SUBMITNAME));
+            }
+            joining = false;
+        });
+    }
+
+    private void setRoom(Rooms.Room next) {
+        room = next;
+        if (resumable != null) {
+            resumable.room = next;
+        }
+    }
+
+    /**
+     * Takes over the client's session from before it lost its
+     * connection, given "<token> <frames received>".  If that does not
+     * work the client is asked for a name instead.
+     */
+    private void resume(String request) {
+        String[] parts = request.split(" ");
+        ResumableSession previous = parts.length == 2 ? router.resumable(parts[0]) : null;
+        long received = -1;
+        try {
+            received = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            // Not resumable either
+        }
+        if (previous != null && previous.roster() == roster
+                && previous.attach(connection, queue, evict, received)) {
+            // Replaces the unnamed one made by the handshake, if any
+            resumable = previous;
+            session = previous;
+            room = previous.room;
+            name = previous.name();
+            router.metrics().sessionResumed();
+        } else {
+            router.metrics().resumeRefused();
+            session.send(Frame.of(Opcode.SUBMITNAME));
+        }
+    }
+
+    /**
+     * Makes sure the client's session ends with this connection.
+     */
+    void endSession() {
+        ended = true;
+    }
+
+    /**
+     * Cleans up after the client has gone away.  A resumable session
+     * waits for the client to come back instead.
+     */
+    void disconnected() {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
+        if (resumable != null) {
+            if (name != null) {
+                resumable.detach(connection, !ended);
+            }
+        } else if (name != null) {
+            router.leave(session, name, room);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package chatserver;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All clients that own a screen name, keyed by that name.  This
+ * replaces the separate names, writers and writersWithNames
+ * collections, which had to be kept in step by hand and were only
+ * locked while a name was being chosen.
+ *
+ * Claiming and releasing a name are single atomic map operations, so
+ * joins and leaves never queue up behind one lock.  Iteration is
+ * weakly consistent: a broadcast sees every client that was
+ * registered when it started, may or may not see clients that join or
+ * leave while it runs, and never throws
+ * ConcurrentModificationException.
+ */
+final class ClientRegistry {
+
+    private final ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the session under the name if nobody owns it yet.
+     *
+     * @return true if the name now belongs to the session
+     */
+    boolean claim(String name, ClientSession session) {
+        return sessions.putIfAbsent(name, session) == null;
+    }
+
+    /**
+     * Frees the name, but only if it still belongs to the session.
+     *
+     * @return true if the session was registered under the name
+     */
+    boolean release(String name, ClientSession session) {
+        return sessions.remove(name, session);
+    }
+
+    /**
+     * The session registered under the name, or null.
+     */
+    ClientSession get(String name) {
+        return sessions.get(name);
+    }
+
+    /**
+     * A live, read-only view of the registered names.
+     */
+    Set<String> names() {
+        return sessions.keySet();
+    }
+
+    /**
+     * The sessions that have a name, for reporting.
+     */
+    Collection<ClientSession> sessions() {
+        return sessions.values();
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Sends the frame to every registered session.  The same frame
+     * goes to everybody, so it is encoded once per wire format.
+     */
+    void broadcast(Frame frame) {
+        for (ClientSession session : sessions.values()) {
+            session.send(frame);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package chatserver;
+
+/**
+ * A connected client as seen by the rest of the server.  Both the
+ * blocking Handler and the NIO engine's connections implement it, so
+ * the registry and the broadcast code do not care which engine a
+ * client came in through.
+ */
+interface ClientSession {
+
+    /**
+     * The screen name, or null while the client is still choosing one.
+     */
+    String name();
+
+    /**
+     * Sends one frame to the client.  Safe to call from any thread.
+     * The same frame may be given to many sessions.
+     */
+    void send(Frame frame);
+
+    /**
+     * The number of frames queued for the client but not written yet.
+     */
+    int queueDepth();
+
+    /**
+     * The number of frames the slow-consumer policy threw away.
+     */
+    long droppedLines();
+
+    /**
+     * The total time reading from the client was paused by its rate
+     * limits, in nanoseconds.
+     */
+    long throttledNanos();
+}
@@ -0,0 +1,544 @@
+package chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Links this chat server to the other nodes of a cluster, so that
+ * clients connected to different nodes can talk to each other.  Every
+ * node dials every peer given with --peers and sends everything it
+ * has to say over that outbound link; it hears from the peers over
+ * the links they dial in.  Relayed are:
+ *
+ *     presence   a client joined or left on the sending node
+ *     rooms      a message for a room, delivered to the room's local
+ *                members on every node
+ *     private    a message for a client that lives on the receiving node
+ *
+ * Screen names are unique across the cluster.  Before a node accepts
+ * a name it asks every peer; a peer refuses if the name is in use or
+ * reserved there.  When two nodes ask for the same name at the same
+ * time, the node with the smaller id wins.  A peer that does not
+ * answer in time counts as a refusal, and so does a peer that cannot
+ * be reached at all: a node cut off from a peer could otherwise give
+ * out a name the peer gives out too, and both would keep it once the
+ * link is back.  So while any node of --peers is down, clients already
+ * in keep chatting but nobody new can join; a node that is gone for
+ * good has to be taken out of --peers.
+ *
+ * Every link has a bounded queue (--peer-queue-capacity).  A peer that
+ * is reachable but reads too slowly to keep it from filling up has its
+ * link dropped, like a slow client, and gets everything again when
+ * the link is re-established.
+ *
+ * Link messages are a type byte followed by strings (and a long claim
+ * id for claims).  A string is its length in UTF-8 bytes as an int and
+ * then the bytes, so any name or text up to MAX_FIELD_BYTES can be
+ * carried; writeUTF would stop at 65535 bytes, which chat text in most
+ * scripts can reach within BinaryCodec.MAX_PAYLOAD.
+ */
+final class ClusterNode {
+
+    private static final byte HELLO = 1;
+    private static final byte CLAIM = 2;
+    private static final byte CLAIM_REPLY = 3;
+    private static final byte RELEASE = 4;
+    private static final byte JOIN = 5;
+    private static final byte LEAVE = 6;
+    private static final byte ROOM = 7;
+    private static final byte PRIVATE = 8;
+
+    /**
+     * The longest string a link message may carry.  Names and room
+     * names are much shorter, texts are payloads of chat frames.
+     */
+    private static final int MAX_FIELD_BYTES = BinaryCodec.MAX_PAYLOAD;
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final ServerConfig config;
+    private final ChatRouter router;
+    private final List<PeerLink> links = new CopyOnWriteArrayList<>();
+
+    /**
+     * Names that live on other nodes, with the id of their node.
+     */
+    private final ConcurrentHashMap<String, String> remoteClients = new ConcurrentHashMap<>();
+
+    /**
+     * Names this node has promised to another node that is still
+     * finishing its claim, with the id of that node.
+     */
+    private final ConcurrentHashMap<String, String> reservations = new ConcurrentHashMap<>();
+
+    /**
+     * Names this node is currently asking the cluster for.
+     */
+    private final Set<String> pendingLocal = ConcurrentHashMap.newKeySet();
+
+    private final Map<Long, PendingClaim> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+
+    /**
+     * Claim decisions are made under this lock so that a local claim
+     * and a peer's claim for the same name cannot both be granted here.
+     */
+    private final Object claimLock = new Object();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-cluster-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ClusterNode(ServerConfig config, ChatRouter router) {
+        this.config = config;
+        this.router = router;
+    }
+
+    /**
+     * Starts listening for peers and dialling them.
+     */
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket(config.clusterPort);
+        daemon("chat-cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    daemon("chat-cluster-in", () -> readInbound(socket));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+        for (InetSocketAddress peer : config.peers) {
+            PeerLink link = new PeerLink(peer);
+            links.add(link);
+            daemon("chat-cluster-out-" + peer.getPort(), link::connectLoop);
+        }
+        System.out.println("Cluster node " + config.nodeId + " listening for peers on port " + config.clusterPort);
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The names of all clients connected to other nodes.
+     */
+    Set<String> remoteNames() {
+        return remoteClients.keySet();
+    }
+
+    // ---- claiming names ----
+
+    /**
+     * Tries to give the name to a local session.  The answer arrives
+     * through the callback, on this thread if the cluster need not be
+     * asked and on a cluster thread otherwise.  On success the session
+     * is already in the registry when the callback runs.
+     */
+    void claim(String name, ClientSession session, Consumer<Boolean> done) {
+        for (PeerLink link : links) {
+            if (!link.isConnected()) {
+                session.send(Frame.message("Cluster node " + link + " cannot be reached, please try again later"));
+                done.accept(false);
+                return;
+            }
+        }
+        synchronized (claimLock) {
+            if (router.registry().get(name) != null || remoteClients.containsKey(name)
+                    || reservations.containsKey(name) || !pendingLocal.add(name)) {
+                done.accept(false);
+                return;
+            }
+        }
+        PendingClaim claim = new PendingClaim(claimIds.incrementAndGet(), name, session, links.size(), done);
+        if (links.isEmpty()) {
+            claim.finish();
+            return;
+        }
+        pendingClaims.put(claim.id, claim);
+        // A link that goes down now drops the claim, which then times out
+        broadcast(encode(CLAIM, claim.id, name));
+        timer.schedule(() -> {
+            claim.refused = true;
+            claim.finish();
+        }, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A local claim waiting for the peers' answers.
+     */
+    private final class PendingClaim {
+        final long id;
+        final String name;
+        final ClientSession session;
+        final AtomicInteger outstanding;
+        final Consumer<Boolean> done;
+        volatile boolean refused;
+        private boolean finished;
+
+        PendingClaim(long id, String name, ClientSession session, int peers, Consumer<Boolean> done) {
+            this.id = id;
+            this.name = name;
+            this.session = session;
+            this.outstanding = new AtomicInteger(peers);
+            this.done = done;
+        }
+
+        void reply(boolean granted) {
+            if (!granted) {
+                refused = true;
+            }
+            if (outstanding.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        void finish() {
+            boolean granted;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            pendingClaims.remove(id);
+            synchronized (claimLock) {
+                pendingLocal.remove(name);
+                granted = !refused && router.registry().claim(name, session);
+            }
+            if (!granted) {
+                broadcast(encode(RELEASE, name));
+            }
+            done.accept(granted);
+        }
+    }
+
+    /**
+     * Decides on a peer's claim.  Called on the inbound link's thread.
+     */
+    private boolean grant(String node, String name) {
+        synchronized (claimLock) {
+            if (router.registry().get(name) != null) {
+                return false;
+            }
+            String owner = remoteClients.get(name);
+            if (owner != null && !owner.equals(node)) {
+                return false;
+            }
+            String reservedFor = reservations.get(name);
+            if (reservedFor != null && !reservedFor.equals(node)) {
+                return false;
+            }
+            // Both of us want it; the smaller node id wins
+            if (pendingLocal.contains(name) && node.compareTo(config.nodeId) > 0) {
+                return false;
+            }
+            reservations.put(name, node);
+            return true;
+        }
+    }
+
+    // ---- relaying ----
+
+    void announceJoin(String name) {
+        broadcast(encode(JOIN, name));
+    }
+
+    void announceLeave(String name) {
+        broadcast(encode(LEAVE, name));
+    }
+
+    /**
+     * Relays an already formatted room message to the other nodes.
+     */
+    void relayRoom(String room, String text) {
+        broadcast(encode(ROOM, room, text));
+    }
+
+    /**
+     * Forwards a private message for a client on another node.  Links
+     * are not keyed by node, so it goes to every peer and only the
+     * receiver's node delivers it.
+     *
+     * @return false if the receiver is not known anywhere in the cluster
+     */
+    boolean relayPrivate(String receiver, String text) {
+        String node = remoteClients.get(receiver);
+        if (node == null) {
+            return false;
+        }
+        broadcast(encode(PRIVATE, receiver, text));
+        return true;
+    }
+
+    private void broadcast(byte[] message) {
+        for (PeerLink link : links) {
+            link.send(message);
+        }
+    }
+
+    // ---- the wire ----
+
+    private static byte[] encode(byte type, String... fields) {
+        return encode(type, -1, fields);
+    }
+
+    private static byte[] encode(byte type, long claimId, String... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            if (type == CLAIM || type == CLAIM_REPLY) {
+                out.writeLong(claimId);
+            }
+            for (String field : fields) {
+                byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a string written by encode.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_BYTES) {
+            throw new IOException("Bad string length " + length + " on cluster link");
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serves one link dialled in by a peer, for as long as it lasts.
+     * Everything the peer relays arrives here; claim answers go back
+     * over the same socket.
+     */
+    private void readInbound(Socket socket) {
+        String node = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readByte() != HELLO) {
+                return;
+            }
+            node = readString(in);
+            System.out.println("Cluster peer " + node + " connected");
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case CLAIM: {
+                        long id = in.readLong();
+                        boolean granted = grant(node, readString(in));
+                        out.write(encode(CLAIM_REPLY, id, granted ? "ok" : "taken"));
+                        out.flush();
+                        break;
+                    }
+                    case RELEASE:
+                        reservations.remove(readString(in), node);
+                        break;
+                    case JOIN: {
+                        String name = readString(in);
+                        reservations.remove(name, node);
+                        if (remoteClients.put(name, node) == null) {
+                            router.remoteJoined(name);
+                        }
+                        break;
+                    }
+                    case LEAVE: {
+                        String name = readString(in);
+                        if (remoteClients.remove(name, node)) {
+                            router.remoteLeft(name);
+                        }
+                        break;
+                    }
+                    case ROOM:
+                        router.deliverRoom(readString(in), readString(in));
+                        break;
+                    case PRIVATE:
+                        router.deliverPrivate(readString(in), readString(in));
+                        break;
+                    default:
+                        throw new IOException("Unknown cluster message " + type);
+                }
+            }
+        } catch (IOException e) {
+            // The peer went away
+        } finally {
+            if (node != null) {
+                System.out.println("Cluster peer " + node + " disconnected");
+                forget(node);
+            }
+        }
+    }
+
+    /**
+     * Drops everything known about a node whose link went down.
+     */
+    private void forget(String node) {
+        reservations.values().removeIf(node::equals);
+        for (Map.Entry<String, String> entry : remoteClients.entrySet()) {
+            if (entry.getValue().equals(node) && remoteClients.remove(entry.getKey(), node)) {
+                router.remoteLeft(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * The link this node dials to one peer.  Messages are queued and
+     * written by the link's own thread, so relaying never blocks an
+     * event loop or a Handler on a slow peer.
+     */
+    private final class PeerLink {
+        /**
+         * Queued by the reply reader to wake the writer when the link dies.
+         */
+        private final byte[] closed = new byte[0];
+
+        private final InetSocketAddress address;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(config.peerQueueCapacity);
+        private volatile boolean connected;
+
+        /**
+         * The socket of the current connection, or null between them.
+         */
+        private volatile Socket socket;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+
+        /**
+         * Queues a message, or drops it while the peer is unreachable;
+         * the peer gets the current presence again when it reconnects.
+         * Drops the link when the queue is full.
+         */
+        void send(byte[] message) {
+            if (connected && !queue.offer(message)) {
+                System.out.println("Cluster peer " + this + " is not keeping up, dropping the link");
+                close(socket);
+            }
+        }
+
+        /**
+         * Ends the connection over the socket, unless a newer one has
+         * replaced it.  Closing the socket stops a writer stuck on the
+         * peer, the marker one that waits for work.
+         */
+        private void close(Socket current) {
+            if (current == null || current != socket) {
+                return;
+            }
+            connected = false;
+            try {
+                current.close();
+            } catch (IOException e) {
+            }
+            queue.offer(closed);
+        }
+
+        void connectLoop() {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    // Resolved on every attempt, the peer may have moved
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()));
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.write(encode(HELLO, config.nodeId));
+                    queue.clear();
+                    connected = true;
+                    // Tell the peer who is here
+                    for (String name : router.registry().names()) {
+                        out.write(encode(JOIN, name));
+                    }
+                    out.flush();
+                    daemon("chat-cluster-replies-" + address.getPort(), () -> readReplies(socket));
+                    while (true) {
+                        byte[] message = queue.take();
+                        if (message == closed) {
+                            throw new IOException("Link to " + address + " closed");
+                        }
+                        out.write(message);
+                        if (queue.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Not up yet or gone; try again shortly
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    this.socket = null;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void readReplies(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    if (in.readByte() != CLAIM_REPLY) {
+                        throw new IOException("Unexpected message on outbound link");
+                    }
+                    long id = in.readLong();
+                    boolean granted = readString(in).equals("ok");
+                    PendingClaim claim = pendingClaims.get(id);
+                    if (claim != null) {
+                        claim.reply(granted);
+                    }
+                }
+            } catch (IOException e) {
+                close(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package chatserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What compression saves and what it costs, summed over all
+ * compressed connections.  "Raw" bytes are the protocol bytes before
+ * deflating (or after inflating), "wire" bytes what actually crossed
+ * the socket.  The time is spent inside Deflater and Inflater calls,
+ * which is CPU time as long as the server is not starved of cores.
+ */
+final class CompressionStats {
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder rawOut = new LongAdder();
+    private final LongAdder wireOut = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+    private final LongAdder rawIn = new LongAdder();
+    private final LongAdder wireIn = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    void connectionCompressed() {
+        connections.increment();
+    }
+
+    void deflated(long raw, long wire, long nanos) {
+        rawOut.add(raw);
+        wireOut.add(wire);
+        deflateNanos.add(nanos);
+    }
+
+    void inflated(long wire, long raw, long nanos) {
+        wireIn.add(wire);
+        rawIn.add(raw);
+        inflateNanos.add(nanos);
+    }
+
+    /**
+     * Connections that have negotiated compression so far.
+     */
+    long connections() {
+        return connections.sum();
+    }
+
+    long rawOut() {
+        return rawOut.sum();
+    }
+
+    long wireOut() {
+        return wireOut.sum();
+    }
+
+    long deflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    long rawIn() {
+        return rawIn.sum();
+    }
+
+    long wireIn() {
+        return wireIn.sum();
+    }
+
+    long inflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    /**
+     * Bytes not sent or received thanks to compression.  May be
+     * negative if the traffic does not compress.
+     */
+    long bytesSaved() {
+        return rawOut() - wireOut() + rawIn() - wireIn();
+    }
+}
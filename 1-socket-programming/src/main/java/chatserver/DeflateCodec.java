@@ -0,0 +1,239 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of a whole connection.  A client asks for it
+ * by answering the first SUBMITNAME with the text line
+ * "PROTOCOL DEFLATE".  If the server has compression enabled it
+ * answers with the same line, and from then on everything in both
+ * directions is one zlib stream per direction, flushed with
+ * SYNC_FLUSH whenever the sender writes so the other side can decode
+ * it right away.  Otherwise it answers "PROTOCOL NONE" and the
+ * connection stays uncompressed.  Either way a SUBMITNAME follows,
+ * and the client must not send anything else until it has read the
+ * answer.
+ *
+ * Compression sits below the framing: a compressed client may still
+ * ask for binary frames afterwards, with the usual handshake sent
+ * through the compressed stream.
+ *
+ * Each connection keeps its Deflater and Inflater for its whole life,
+ * so later messages are compressed against everything said before.
+ * That is where most of the saving on short chat lines comes from,
+ * at the price of a compression context (a few hundred KB) per
+ * connection and of deflating every broadcast once per recipient.
+ */
+final class DeflateCodec {
+
+    /**
+     * The text line that requests, and acknowledges, compression.
+     */
+    static final String HANDSHAKE = Opcode.PROTOCOL.textPrefix + "DEFLATE";
+
+    /**
+     * The payload of the PROTOCOL frame that accepts compression.
+     */
+    static final String ACCEPTED = "DEFLATE";
+
+    /**
+     * The payload of the PROTOCOL frame that refuses it.
+     */
+    static final String REFUSED = "NONE";
+
+    private DeflateCodec() {
+    }
+
+    /**
+     * Deflates the frames sent to one client.  Frames are added one by
+     * one and then flushed together, so a batch of frames costs one
+     * sync marker instead of one per frame.  Only used by the thread
+     * writing to the client.
+     */
+    static final class Compressor {
+        private final Deflater deflater;
+        private final CompressionStats stats;
+        private byte[] output = new byte[4096];
+        private int length;
+        private long raw;
+        private long nanos;
+
+        Compressor(int level, CompressionStats stats) {
+            this.deflater = new Deflater(level);
+            this.stats = stats;
+        }
+
+        /**
+         * Deflates one encoded frame into the pending output.
+         */
+        void add(ByteBuffer frame) {
+            long start = System.nanoTime();
+            raw += frame.remaining();
+            deflater.setInput(frame);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * True if frames were added since the last flush.
+         */
+        boolean pending() {
+            return raw > 0;
+        }
+
+        /**
+         * Finishes the pending output so the client can decode all of
+         * it.  The returned buffer is only valid until the next add.
+         */
+        ByteBuffer flush() {
+            long start = System.nanoTime();
+            // A full output buffer means the flush may not be complete yet
+            do {
+                deflate(Deflater.SYNC_FLUSH);
+            } while (length == output.length);
+            nanos += System.nanoTime() - start;
+
+            stats.deflated(raw, length, nanos);
+            ByteBuffer flushed = ByteBuffer.wrap(output, 0, length);
+            length = 0;
+            raw = 0;
+            nanos = 0;
+            return flushed;
+        }
+
+        private void deflate(int flush) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(output, length, output.length - length, flush);
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates what one client sends.  Only used by the thread reading
+     * from the client.
+     */
+    static final class Decompressor {
+        private final Inflater inflater = new Inflater();
+        private final CompressionStats stats;
+
+        Decompressor(CompressionStats stats) {
+            this.stats = stats;
+        }
+
+        /**
+         * Hands the next compressed bytes to the inflater.  They are
+         * consumed by the following inflate calls, which must continue
+         * until needsInput is true again.
+         */
+        void setInput(ByteBuffer compressed) {
+            stats.inflated(compressed.remaining(), 0, 0);
+            inflater.setInput(compressed);
+        }
+
+        void setInput(byte[] compressed, int offset, int count) {
+            stats.inflated(count, 0, 0);
+            inflater.setInput(compressed, offset, count);
+        }
+
+        boolean needsInput() {
+            return inflater.needsInput();
+        }
+
+        /**
+         * Inflates as much as fits into the output buffer.
+         *
+         * @return the number of bytes inflated, 0 if more input is needed
+         * @throws IllegalStateException if the data is not a valid
+         *                               stream or the stream has ended
+         */
+        int inflate(ByteBuffer output) {
+            long start = System.nanoTime();
+            try {
+                int count = inflater.inflate(output);
+                record(count, start);
+                return count;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Bad compressed data: " + e.getMessage());
+            }
+        }
+
+        int inflate(byte[] output, int offset, int count) {
+            long start = System.nanoTime();
+            try {
+                int inflated = inflater.inflate(output, offset, count);
+                record(inflated, start);
+                return inflated;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Bad compressed data: " + e.getMessage());
+            }
+        }
+
+        private void record(int count, long start) {
+            if (count == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                throw new IllegalStateException("The compressed stream has ended");
+            }
+            stats.inflated(0, count, System.nanoTime() - start);
+        }
+
+        /**
+         * Reads through this decompressor from a blocking stream of
+         * compressed bytes.
+         */
+        InputStream stream(InputStream compressed) {
+            return new InputStream() {
+                private final byte[] input = new byte[8192];
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    if (count == 0) {
+                        return 0;
+                    }
+                    while (true) {
+                        int inflated;
+                        try {
+                            inflated = inflate(buffer, offset, count);
+                        } catch (IllegalStateException e) {
+                            throw new IOException(e.getMessage());
+                        }
+                        if (inflated > 0) {
+                            return inflated;
+                        }
+                        int read = compressed.read(input, 0, input.length);
+                        if (read < 0) {
+                            return -1;
+                        }
+                        setInput(input, 0, read);
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    compressed.close();
+                }
+            };
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+}
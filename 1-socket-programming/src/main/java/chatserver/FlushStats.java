@@ -0,0 +1,109 @@
+package chatserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how much every flush to a client carried, so that the two
+ * flush modes can be compared.  With --flush=immediate nearly every
+ * flush carries a single frame; with --flush=batched the histogram
+ * shows how many frames the batching window managed to coalesce.
+ *
+ * Every writer of the server records into the same instance, so the
+ * counters are striped rather than locked.
+ */
+final class FlushStats {
+
+    /**
+     * Upper bounds of the frames-per-flush buckets; the last bucket
+     * takes everything larger.
+     */
+    private static final int[] BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder[] histogram = new LongAdder[BUCKETS.length + 1];
+
+    FlushStats() {
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one flush of the given number of frames and bytes.
+     */
+    void record(int frameCount, long byteCount) {
+        if (frameCount == 0) {
+            return;
+        }
+        flushes.increment();
+        frames.add(frameCount);
+        bytes.add(byteCount);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && frameCount > BUCKETS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket].increment();
+    }
+
+    long flushes() {
+        return flushes.sum();
+    }
+
+    long frames() {
+        return frames.sum();
+    }
+
+    long bytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * One line with the totals and the frames-per-flush histogram, e.g.
+     *
+     *     flushes=120 frames=960 bytes=40210 frames/flush=8.0 [1:10 2:0 4:30 8:80 ...]
+     */
+    String summary() {
+        long flushCount = flushes();
+        StringBuilder line = new StringBuilder()
+                .append("flushes=").append(flushCount)
+                .append(" frames=").append(frames())
+                .append(" bytes=").append(bytes())
+                .append(" frames/flush=")
+                .append(flushCount == 0 ? "0" : String.format("%.1f", (double) frames() / flushCount))
+                .append(" [");
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                line.append(' ');
+            }
+            line.append(i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : ">" + BUCKETS[BUCKETS.length - 1])
+                    .append(':').append(histogram[i].sum());
+        }
+        return line.append(']').toString();
+    }
+
+    /**
+     * Prints the summary every given number of seconds, from a daemon
+     * thread, for as long as the server runs.  Nothing is printed while
+     * no frames are written.
+     */
+    void reportEvery(int seconds) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-flush-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastFrames = {0};
+        reporter.scheduleAtFixedRate(() -> {
+            long current = frames();
+            if (current != lastFrames[0]) {
+                lastFrames[0] = current;
+                System.out.println("Flush stats: " + summary());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+}
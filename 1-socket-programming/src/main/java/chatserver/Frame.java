@@ -0,0 +1,116 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One frame sent by the server, encoded at most once per wire format.
+ * A broadcast builds a single Frame and hands the same instance to
+ * every recipient, so the cost of building and encoding the message
+ * does not grow with the number of clients.  Text clients get the
+ * text encoding and binary clients the binary one; each is produced
+ * the first time somebody needs it and then shared.
+ *
+ * The encoded bytes are never modified; each writer reads them
+ * through its own view (see buffer) so that many connections can be
+ * part way through writing the same frame.
+ */
+final class Frame {
+
+    private final Opcode opcode;
+    private final String payload;
+
+    // Racing threads may both encode, which is harmless: the results
+    // are equal and either one may win.
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer binary;
+
+    private Frame(Opcode opcode, String payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    static Frame of(Opcode opcode) {
+        return new Frame(opcode, "");
+    }
+
+    static Frame of(Opcode opcode, String payload) {
+        return new Frame(opcode, payload);
+    }
+
+    /**
+     * A MESSAGE frame, the text shown in the client's message area.
+     */
+    static Frame message(String text) {
+        return new Frame(Opcode.MESSAGE, text);
+    }
+
+    Opcode opcode() {
+        return opcode;
+    }
+
+    String payload() {
+        return payload;
+    }
+
+    /**
+     * The frame as a text protocol line, without the newline.
+     */
+    String line() {
+        return opcode.textPrefix + payload;
+    }
+
+    /**
+     * True for chat text, as opposed to protocol and presence frames.
+     */
+    boolean isChatMessage() {
+        return opcode == Opcode.MESSAGE;
+    }
+
+    /**
+     * True for the answer that switches the connection to compression.
+     * Everything the client is sent after this frame is deflated.
+     */
+    boolean startsCompression() {
+        return opcode == Opcode.PROTOCOL && payload.equals(DeflateCodec.ACCEPTED);
+    }
+
+    /**
+     * A fresh read-only view of the encoded bytes with its own
+     * position, for writing to a channel.  No bytes are copied.
+     * PROTOCOL frames are always text since they are the negotiation
+     * itself.
+     */
+    ByteBuffer buffer(boolean binaryWire) {
+        return encoded(binaryWire && opcode != Opcode.PROTOCOL).asReadOnlyBuffer();
+    }
+
+    /**
+     * The encoded size in bytes for the given wire format.
+     */
+    int size(boolean binaryWire) {
+        return encoded(binaryWire && opcode != Opcode.PROTOCOL).remaining();
+    }
+
+    void writeTo(OutputStream out, boolean binaryWire) throws IOException {
+        ByteBuffer bytes = encoded(binaryWire && opcode != Opcode.PROTOCOL);
+        out.write(bytes.array(), bytes.arrayOffset(), bytes.remaining());
+    }
+
+    private ByteBuffer encoded(boolean binaryWire) {
+        if (binaryWire) {
+            ByteBuffer encoded = binary;
+            if (encoded == null) {
+                binary = encoded = ByteBuffer.wrap(BinaryCodec.encode(opcode, payload));
+            }
+            return encoded;
+        }
+        ByteBuffer encoded = text;
+        if (encoded == null) {
+            text = encoded = ByteBuffer.wrap((line() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,66 @@
+package chatserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs the blocking ChatServer Handlers.
+ * A Handler keeps its thread for as long as the client is connected,
+ * so the choice of threads decides how many clients the blocking
+ * engine can hold:
+ *
+ *     platform - a new platform thread per client (the original design)
+ *     pooled   - a fixed pool of platform threads; clients beyond the
+ *                pool size wait until somebody leaves
+ *     virtual  - a new virtual thread per client, cheap enough for
+ *                very large numbers of mostly idle clients
+ */
+final class HandlerExecutors {
+
+    private HandlerExecutors() {
+    }
+
+    static ExecutorService create(ServerConfig config) {
+        switch (config.threads) {
+            case PLATFORM:
+                return Executors.newCachedThreadPool(namedThreads("chat-handler-"));
+            case POOLED:
+                return Executors.newFixedThreadPool(config.poolSize, namedThreads("chat-pool-"));
+            case VIRTUAL:
+                return newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown thread mode " + config.threads);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + count.incrementAndGet());
+    }
+
+    /**
+     * The module is compiled for a release that predates virtual
+     * threads, so the factory method is looked up when the server
+     * starts.  Running on a JDK without it is a startup error rather
+     * than a silent fall back to platform threads, because the point
+     * of the switch is to compare the modes.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("--threads=virtual needs a JDK with virtual threads (21 or newer), running on "
+                    + System.getProperty("java.version"), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            // JDK 19 and 20 refuse unless started with --enable-preview
+            throw new IllegalStateException("Virtual threads are not available: " + e.getCause(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package chatserver;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One timer thread for any number of timeouts.  Time is cut into
+ * ticks, and the wheel has a slot for every tick of one revolution; a
+ * timeout goes into the slot of the tick it is due in, together with
+ * the number of full revolutions still to wait.  Each tick the thread
+ * looks at one slot only, so scheduling and cancelling are O(1) and
+ * the cost of a tick does not grow with the number of connections,
+ * at the price of firing up to one tick late.
+ *
+ * Tasks run on the timer thread and must be short; anything that can
+ * block belongs on another thread.
+ */
+final class HashedWheelTimer {
+
+    /**
+     * A scheduled task.
+     */
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Makes sure the task does not run, if it has not yet.  The
+         * timeout stays in its slot until the wheel passes it.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    private final long start = System.nanoTime();
+
+    /**
+     * Timeouts scheduled from other threads, put into the wheel by the
+     * timer thread on its next tick.
+     */
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    /**
+     * @param slots rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int slots) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the timer thread after the delay.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - start + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - (System.nanoTime() - start);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            transferAdded();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Never into a slot the wheel has already passed
+            long due = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot, long deadline) {
+        for (Iterator<Timeout> it = slot.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (timeout.deadline <= deadline) {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
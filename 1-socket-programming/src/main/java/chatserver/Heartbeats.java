@@ -0,0 +1,158 @@
+package chatserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds connections whose client has gone away without closing them.
+ * A peer that crashed or lost its network leaves a half-open socket
+ * behind: reading from it blocks forever, writing to it succeeds until
+ * the send buffer is full, and the client keeps its name, its place in
+ * every room and its queue of frames.
+ *
+ * With --ping-interval the server sends PING to a client that has sent
+ * nothing for that long, and again every interval after that.  Clients
+ * answer with the text line "/pong" or a PONG frame, which counts as
+ * input but not as chatting.  With --read-timeout a client that has
+ * sent nothing at all for that long is disconnected, so a client that
+ * does not answer PING is gone soon after the timeout.  With
+ * --idle-timeout a client that has not chatted (sent a message or a
+ * command) for that long is disconnected, even if it answers PING, and
+ * its session cannot be resumed.
+ *
+ * Every connection has one check on the HashedWheelTimer shared by the
+ * whole server.  A check does not move when input arrives, it
+ * only looks at when the client last sent something and schedules
+ * itself again for the next time that could matter, so a busy client
+ * costs one check per interval rather than a timer update per line.
+ */
+final class Heartbeats {
+
+    /**
+     * What text clients answer PING with.
+     */
+    static final String PONG = "/pong";
+
+    private final long pingNanos;
+    private final long readTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final ServerMetrics metrics;
+
+    /**
+     * Null if all of the above are off.
+     */
+    private final HashedWheelTimer timer;
+
+    /**
+     * @param timer the server's timer, null if all of the above are off
+     */
+    Heartbeats(ServerConfig config, ServerMetrics metrics, HashedWheelTimer timer) {
+        this.pingNanos = TimeUnit.SECONDS.toNanos(config.pingIntervalSeconds);
+        this.readTimeoutNanos = TimeUnit.SECONDS.toNanos(config.readTimeoutSeconds);
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.idleTimeoutSeconds);
+        this.metrics = metrics;
+        boolean enabled = pingNanos > 0 || readTimeoutNanos > 0 || idleTimeoutNanos > 0;
+        this.timer = enabled ? timer : null;
+    }
+
+    /**
+     * Starts checking on a newly connected client.
+     *
+     * @param evict closes the connection; runs on the timer thread, so
+     *              it must not block
+     * @return the check, to be cancelled when the client goes away
+     */
+    Watch watch(ClientSession session, ClientProtocol protocol, Runnable evict) {
+        Watch watch = new Watch(session, protocol, evict);
+        if (timer != null) {
+            watch.schedule(Math.min(positive(pingNanos), Math.min(positive(readTimeoutNanos),
+                    positive(idleTimeoutNanos))));
+        }
+        return watch;
+    }
+
+    private static long positive(long nanos) {
+        return nanos > 0 ? nanos : Long.MAX_VALUE;
+    }
+
+    /**
+     * The check of one client.
+     */
+    final class Watch {
+        private final ClientSession session;
+        private final ClientProtocol protocol;
+        private final Runnable evict;
+
+        /**
+         * When the last PING went out.  Only used on the timer thread.
+         */
+        private long lastPing;
+        private volatile HashedWheelTimer.Timeout next;
+        private volatile boolean cancelled;
+
+        private Watch(ClientSession session, ClientProtocol protocol, Runnable evict) {
+            this.session = session;
+            this.protocol = protocol;
+            this.evict = evict;
+            this.lastPing = System.nanoTime();
+        }
+
+        private void schedule(long delayNanos) {
+            next = timer.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+            if (cancelled) {
+                next.cancel();
+            }
+        }
+
+        /**
+         * Stops checking; the client has gone away.
+         */
+        void cancel() {
+            cancelled = true;
+            HashedWheelTimer.Timeout timeout = next;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        private void check() {
+            if (cancelled) {
+                return;
+            }
+            long now = System.nanoTime();
+            long silent = now - protocol.lastInput();
+            long idle = now - protocol.lastActivity();
+            if (readTimeoutNanos > 0 && silent >= readTimeoutNanos) {
+                System.out.println("Disconnecting unresponsive client " + session.name());
+                metrics.readTimeout();
+                evict.run();
+                return;
+            }
+            if (idleTimeoutNanos > 0 && idle >= idleTimeoutNanos) {
+                System.out.println("Disconnecting idle client " + session.name());
+                metrics.idleTimeout();
+                protocol.endSession();
+                evict.run();
+                return;
+            }
+
+            long delay = Long.MAX_VALUE;
+            if (pingNanos > 0) {
+                long sincePing = Math.min(silent, now - lastPing);
+                if (sincePing >= pingNanos) {
+                    session.send(Frame.of(Opcode.PING));
+                    metrics.pingSent();
+                    lastPing = now;
+                    sincePing = 0;
+                }
+                delay = pingNanos - sincePing;
+            }
+            if (readTimeoutNanos > 0) {
+                delay = Math.min(delay, readTimeoutNanos - silent);
+            }
+            if (idleTimeoutNanos > 0) {
+                delay = Math.min(delay, idleTimeoutNanos - idle);
+            }
+            schedule(delay);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package chatserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in microseconds into buckets that are exact below
+ * 64 and then 32 per power of two, so any value is off by at most
+ * about three percent while the whole range up to days fits in a
+ * thousand counters.  Recording is lock free and never allocates, so
+ * the room shards and the engines' threads record into the same
+ * histogram as they go.  Public because the load generator measures
+ * with it too.
+ */
+public final class LatencyHistogram {
+
+    private static final int LINEAR = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BITS = 5;
+    private static final int BUCKETS = LINEAR + (63 - 6) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(Math.max(0, micros)));
+        sum.add(micros);
+    }
+
+    /**
+     * Records the time passed since the given System.nanoTime.
+     */
+    public void recordSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * The total of all recorded values, in microseconds.
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The largest value that falls into the bucket.
+     */
+    private static long highestOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * The value below which the given percentage of the recorded
+     * values fall, e.g. 99.9, or 0 when nothing was recorded.
+     */
+    public long percentile(double percent) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestOf(i);
+            }
+        }
+        return highestOf(BUCKETS - 1);
+    }
+
+    /**
+     * The usual percentiles in milliseconds, e.g.
+     *
+     *     p50=1.2ms p90=3.4ms p99=8.0ms p99.9=15.1ms max=20.3ms
+     */
+    public String summary() {
+        return String.format("p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0,
+                percentile(99.9) / 1000.0, percentile(100) / 1000.0);
+    }
+}
@@ -0,0 +1,86 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes read from a non-blocking channel into protocol
+ * lines.  A read may stop in the middle of a line, so the bytes of an
+ * unfinished line are kept here until the rest of it arrives.  Lines
+ * end with "\n" and an optional "\r" before it is dropped, which is
+ * what BufferedReader.readLine accepts from the Swing client.
+ *
+ * One decoder belongs to one connection and is only used by the
+ * event loop that owns that connection.
+ */
+final class LineDecoder {
+
+    /**
+     * Receives every complete line found by the decoder.
+     */
+    interface LineHandler {
+        /**
+         * @return false to stop decoding and leave the rest of the
+         *         buffer to the caller, for example because the
+         *         connection has switched to binary framing
+         */
+        boolean onLine(String line);
+    }
+
+    private final int maxLineLength;
+    private byte[] partial = new byte[128];
+    private int length;
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Consumes the remaining bytes of the buffer and hands each
+     * finished line to the handler.  Unless the handler asks to stop,
+     * the buffer is left empty so the caller can reuse it for the next
+     * read.
+     *
+     * @throws IllegalStateException if a line grows past the limit
+     */
+    void decode(ByteBuffer buffer, LineHandler handler) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int newline = start;
+            while (newline < buffer.limit() && buffer.get(newline) != '\n') {
+                newline++;
+            }
+            append(buffer, newline - start);
+            if (newline == buffer.limit()) {
+                return;
+            }
+            // Skip the '\n' itself
+            buffer.get();
+
+            int end = length;
+            if (end > 0 && partial[end - 1] == '\r') {
+                end--;
+            }
+            String line = new String(partial, 0, end, StandardCharsets.UTF_8);
+            length = 0;
+            if (!handler.onLine(line)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the next count bytes of the buffer onto the unfinished line.
+     */
+    private void append(ByteBuffer buffer, int count) {
+        if (length + count > maxLineLength) {
+            throw new IllegalStateException("Line longer than " + maxLineLength + " bytes");
+        }
+        if (length + count > partial.length) {
+            partial = Arrays.copyOf(partial, Math.min(Math.max(partial.length * 2, length + count), maxLineLength));
+        }
+        buffer.get(partial, length, count);
+        length += count;
+    }
+}
@@ -0,0 +1,72 @@
+package chatserver;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The messages shown by ChatClient, as a list model with a fixed
+ * capacity.  Once full, every new message pushes out the oldest one,
+ * so a busy room cannot make the client grow without bound.  Shown
+ * in a JList, only the rows on screen are ever rendered, unlike a
+ * JTextArea that lays out its whole text on every append.
+ *
+ * Messages are kept in a ring, and a batch of messages is added with
+ * a single removed and a single added event.  Like every Swing model
+ * it must only be used on the event dispatch thread.
+ */
+final class MessageHistory extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] ring;
+    private int start;
+    private int size;
+
+    MessageHistory(int capacity) {
+        ring = new String[capacity];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getElementAt(int index) {
+        return ring[(start + index) % ring.length];
+    }
+
+    void add(String message) {
+        addAll(List.of(message));
+    }
+
+    /**
+     * Appends the messages in order, dropping the oldest as needed.
+     */
+    void addAll(Collection<String> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        // Only the newest ones can stay
+        int skip = Math.max(0, messages.size() - ring.length);
+        int adding = messages.size() - skip;
+        int dropping = Math.max(0, size + adding - ring.length);
+        if (dropping > 0) {
+            for (int i = 0; i < dropping; i++) {
+                ring[(start + i) % ring.length] = null;
+            }
+            start = (start + dropping) % ring.length;
+            size -= dropping;
+            fireIntervalRemoved(this, 0, dropping - 1);
+        }
+        Iterator<String> it = messages.iterator();
+        for (int i = 0; i < skip; i++) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            ring[(start + size) % ring.length] = it.next();
+            size++;
+        }
+        fireIntervalAdded(this, size - adding, size - 1);
+    }
+}
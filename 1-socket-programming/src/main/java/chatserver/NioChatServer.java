@@ -0,0 +1,640 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking version of the chat server.  Instead of one thread
+ * per client, a small number of event loops each own a Selector and
+ * service every client registered with it.  The protocol is the same
+ * one spoken by ChatServer and ChatClient:
+ *
+ *     SUBMITNAME, NAMEACCEPTED, MESSAGE, ENTERCLIENT and LEAVECLIENT
+ *
+ * in either the text or the binary wire format, interpreted by the
+ * same ClientProtocol and ChatRouter as the blocking engine.
+ *
+ * The listening thread only accepts sockets and hands them out to the
+ * event loops in turn.  Everything that happens to a connection after
+ * that (reading, parsing, writing, closing) happens on its own loop,
+ * so a connection never needs locking.  Messages for a client owned by
+ * another loop are handed over as tasks to that loop.
+ *
+ * A connection writes everything it has queued with one gathering
+ * write.  With --flush=batched, sends only mark the connection and the
+ * loop flushes all marked connections at the end of its turn (or once
+ * the flush window has passed), so a burst of broadcasts reaches each
+ * client in a few large writes instead of one write per frame.
+ *
+ * A compressed connection (see DeflateCodec) deflates the frames of
+ * each gathering write into a single buffer instead, and inflates what
+ * it reads before decoding it.
+ *
+ * A client over its rate limits loses OP_READ until it is back under
+ * them, which a timer of its loop restores.  Whatever it had already
+ * sent in the same read is held back until then.
+ *
+ * Heartbeats close connections whose client has gone away by handing
+ * the close to the connection's loop like any other task.
+ */
+public class NioChatServer {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Most frames handed to the channel in one gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+
+    /**
+     * Knows all clients that have an accepted name.  Claiming a name
+     * is atomic, so two loops can never hand out the same name.
+     */
+    private final ChatRouter router;
+
+    private final ServerMetrics metrics;
+    private final FlushStats flushStats;
+    private final boolean batched;
+
+    NioChatServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.router = new ChatRouter(config);
+        this.metrics = router.metrics();
+        this.flushStats = metrics.flushStats;
+        this.batched = config.flush == ServerConfig.Flush.BATCHED;
+        this.loops = new EventLoop[config.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts clients forever on the
+     * calling thread.
+     */
+    void run() throws IOException {
+        router.start();
+        if (config.statsInterval > 0) {
+            flushStats.reportEvery(config.statsInterval);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("The chat server is running with " + loops.length + " event loop(s).");
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(config.port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listener.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * One selector thread together with the connections it owns.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+
+        /**
+         * Work handed to this loop from other threads.
+         */
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+        /**
+         * Every read of this loop goes through the same buffer; the
+         * bytes are copied out by the connection's decoder right away.
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        /**
+         * What compressed connections of this loop inflate into, used
+         * the same way as readBuffer.
+         */
+        private final ByteBuffer inflateBuffer = ByteBuffer.allocate(4 * READ_BUFFER_SIZE);
+
+        /**
+         * Connections with frames waiting for the batched flush, and
+         * when that flush is due.
+         */
+        private final ArrayList<Connection> dirty = new ArrayList<>();
+        private long flushDeadline;
+
+        /**
+         * Work to run on this loop at a later time, soonest first.
+         */
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "chat-loop-" + index);
+        }
+
+        /**
+         * Runs a task on this loop, waking the selector if needed.  A
+         * task added by the loop itself runs after the current turn, and
+         * the wakeup keeps the next select from blocking until then.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    metrics.connectionOpened();
+                    connection.protocol.start(() -> execute(connection::close));
+                } catch (ClosedChannelException e) {
+                    // The client went away before we got to it
+                }
+            });
+        }
+
+        /**
+         * Runs the task on this loop after the delay.  Only called on
+         * this loop.
+         */
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        /**
+         * Adds a connection to the next batched flush.  Only called on
+         * this loop.
+         */
+        void markDirty(Connection connection) {
+            if (dirty.isEmpty()) {
+                flushDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.flushWindowMillis);
+            }
+            dirty.add(connection);
+        }
+
+        /**
+         * Flushes the marked connections.  Closing one of them may send
+         * to others on this loop, which are then added to the end of
+         * the list and flushed in the same pass.
+         */
+        private void flushDirty() {
+            for (int i = 0; i < dirty.size(); i++) {
+                Connection connection = dirty.get(i);
+                connection.flushScheduled.set(false);
+                connection.flushOrClose();
+            }
+            dirty.clear();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    if (dirty.isEmpty() && timers.isEmpty()) {
+                        selector.select();
+                    } else {
+                        long deadline = dirty.isEmpty() ? timers.peek().deadline
+                                : timers.isEmpty() ? flushDeadline
+                                : Math.min(flushDeadline, timers.peek().deadline);
+                        long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999_999);
+                        if (wait > 0) {
+                            selector.select(wait);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | IllegalStateException e) {
+                            connection.close();
+                        }
+                    }
+                    if (!dirty.isEmpty() && System.nanoTime() - flushDeadline >= 0) {
+                        flushDirty();
+                    }
+                    runTimers();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && now - timers.peek().deadline >= 0) {
+                timers.poll().task.run();
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on an event loop.
+     */
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    /**
+     * The state of one client.  Only the owning loop touches it, other
+     * threads go through send which re-dispatches onto the loop.
+     */
+    private final class Connection implements ClientSession {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final OutboundQueue queue = new OutboundQueue(config.queueCapacity, config.slowConsumer);
+        private final ClientProtocol protocol = new ClientProtocol(router, this, queue);
+        private final LineDecoder lineDecoder = new LineDecoder(BinaryCodec.MAX_PAYLOAD);
+        private final BinaryCodec.Decoder frameDecoder = new BinaryCodec.Decoder();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        /**
+         * The frames of the current gathering write; those from
+         * batchStart to batchEnd are not completely written yet.
+         */
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+        private int batchStart;
+        private int batchEnd;
+
+        /**
+         * The number of frames in the current gathering write; a
+         * compressed write carries several in one buffer.
+         */
+        private int batchFrames;
+
+        /**
+         * Set once the client has asked for compression.
+         */
+        private DeflateCodec.Compressor compressor;
+        private DeflateCodec.Decompressor decompressor;
+
+        /**
+         * Input already read (and inflated) but not decoded yet, because
+         * the client went over a rate limit.  Null when there is none.
+         */
+        private ByteBuffer held;
+        private SelectionKey key;
+        private boolean closed;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        public String name() {
+            return protocol.name();
+        }
+
+        /**
+         * Queues a frame for this client.  Safe to call from any thread.
+         * Senders on other loops only add to the queue and make sure one
+         * flush is scheduled on this connection's loop.  In batched mode
+         * even the loop itself only schedules the flush.
+         */
+        public void send(Frame frame) {
+            metrics.frameOut();
+            if (!queue.offer(frame)) {
+                loop.execute(() -> {
+                    if (!closed) {
+                        System.out.println("Disconnecting slow client " + name());
+                        close();
+                    }
+                });
+                return;
+            }
+            if (batched) {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    if (Thread.currentThread() == loop.thread) {
+                        loop.markDirty(this);
+                    } else {
+                        loop.execute(() -> loop.markDirty(this));
+                    }
+                }
+            } else if (Thread.currentThread() == loop.thread) {
+                // Whoever is sending may still be working on this
+                // connection, for example welcoming it, so a failed
+                // write closes it only after the sender is done
+                try {
+                    if (!closed) {
+                        flush();
+                    }
+                } catch (IOException e) {
+                    loop.execute(this::close);
+                }
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flushOrClose();
+                });
+            }
+        }
+
+        public int queueDepth() {
+            return queue.depth();
+        }
+
+        public long droppedLines() {
+            return queue.dropped();
+        }
+
+        public long throttledNanos() {
+            return protocol.throttledNanos();
+        }
+
+        private void flushOrClose() {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the outbound queue as the socket takes, up
+         * to MAX_GATHER frames per write call, and asks for OP_WRITE
+         * only while something is left over.
+         */
+        void flush() throws IOException {
+            int frames = 0;
+            long bytes = 0;
+            try {
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        batchStart = 0;
+                        batchEnd = 0;
+                        if (compressor != null) {
+                            fillCompressed();
+                        } else {
+                            fill();
+                        }
+                        if (batchEnd == 0) {
+                            break;
+                        }
+                    }
+                    bytes += channel.write(batch, batchStart, batchEnd - batchStart);
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                    if (batchStart == batchEnd) {
+                        frames += batchFrames;
+                    } else {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } finally {
+                flushStats.record(frames, bytes);
+            }
+        }
+
+        /**
+         * Starts the next gathering write with up to MAX_GATHER queued
+         * frames.  It ends early after the answer that switches on
+         * compression, since the frames after it must be deflated.
+         */
+        private void fill() {
+            Frame frame;
+            while (batchEnd < batch.length && (frame = queue.poll()) != null) {
+                batch[batchEnd++] = frame.buffer(protocol.isBinary());
+                if (frame.startsCompression()) {
+                    compressor = new DeflateCodec.Compressor(config.compressionLevel, metrics.compression);
+                    break;
+                }
+            }
+            batchFrames = batchEnd;
+        }
+
+        /**
+         * Deflates up to MAX_GATHER queued frames into one buffer.
+         */
+        private void fillCompressed() {
+            int count = 0;
+            Frame frame;
+            while (count < MAX_GATHER && (frame = queue.poll()) != null) {
+                compressor.add(frame.buffer(protocol.isBinary()));
+                count++;
+            }
+            if (count > 0) {
+                batch[batchEnd++] = compressor.flush();
+            }
+            batchFrames = count;
+        }
+
+        void read() throws IOException {
+            ByteBuffer buffer = loop.readBuffer;
+            int count;
+            while ((count = channel.read(buffer)) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining() && !closed && held == null) {
+                    if (decompressor != null) {
+                        inflate(buffer);
+                    } else if (protocol.isCompressed()) {
+                        // The rest of the buffer is already compressed
+                        decompressor = new DeflateCodec.Decompressor(metrics.compression);
+                    } else {
+                        decode(buffer);
+                        if (protocol.isThrottled() && buffer.hasRemaining()) {
+                            hold(buffer);
+                        }
+                    }
+                }
+                buffer.clear();
+                if (closed || pauseIfThrottled()) {
+                    return;
+                }
+            }
+            buffer.clear();
+            if (count < 0) {
+                close();
+            }
+        }
+
+        /**
+         * Inflates all of the buffer and decodes the result.  If the
+         * client goes over a rate limit, the rest is inflated and held.
+         */
+        private void inflate(ByteBuffer compressed) {
+            ByteBuffer inflated = loop.inflateBuffer;
+            decompressor.setInput(compressed);
+            while (!closed) {
+                inflated.clear();
+                int count = decompressor.inflate(inflated);
+                if (count == 0 && decompressor.needsInput()) {
+                    return;
+                }
+                inflated.flip();
+                while (inflated.hasRemaining() && !closed && held == null) {
+                    decode(inflated);
+                    if (protocol.isThrottled()) {
+                        // Even if empty, so the rest of the input is held too
+                        hold(inflated);
+                    }
+                }
+                if (held != null) {
+                    hold(inflated);
+                }
+            }
+            // Closed half way, the rest of the input no longer matters
+            compressed.position(compressed.limit());
+        }
+
+        /**
+         * Decodes lines or frames from the buffer.  The decoders stop
+         * early if the client switches to binary or to compression, or
+         * goes over a rate limit; the rest of the buffer is then for
+         * the caller.
+         */
+        private void decode(ByteBuffer buffer) {
+            if (protocol.isBinary()) {
+                frameDecoder.decode(buffer, protocol);
+            } else {
+                lineDecoder.decode(buffer, protocol);
+            }
+        }
+
+        /**
+         * Keeps the rest of the buffer for after the pause; the read
+         * and inflate buffers belong to the whole loop.
+         */
+        private void hold(ByteBuffer rest) {
+            if (held == null) {
+                held = ByteBuffer.allocate(Math.max(rest.remaining(), 1024));
+            } else if (held.remaining() < rest.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(2 * (held.position() + rest.remaining()));
+                held.flip();
+                larger.put(held);
+                held = larger;
+            }
+            held.put(rest);
+        }
+
+        /**
+         * Stops reading if the client is over a rate limit, until resume
+         * runs after the pause.
+         *
+         * @return true if reading has been paused
+         */
+        private boolean pauseIfThrottled() {
+            long pause = protocol.takePause();
+            if (pause == 0) {
+                return false;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(this::resume, pause);
+            return true;
+        }
+
+        /**
+         * Decodes what was held back and then reads again, unless that
+         * puts the client over a limit once more.
+         */
+        private void resume() {
+            if (closed) {
+                return;
+            }
+            if (held != null) {
+                ByteBuffer rest = held;
+                held = null;
+                rest.flip();
+                try {
+                    while (rest.hasRemaining() && !closed && held == null) {
+                        decode(rest);
+                        if (protocol.isThrottled() && rest.hasRemaining()) {
+                            hold(rest);
+                        }
+                    }
+                } catch (IllegalStateException e) {
+                    close();
+                }
+                if (closed || pauseIfThrottled()) {
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // First, so a resumable session still gets what was queued
+            protocol.disconnected();
+            queue.close();
+            Arrays.fill(batch, null);
+            batchStart = 0;
+            batchEnd = 0;
+            if (compressor != null) {
+                compressor.end();
+            }
+            if (decompressor != null) {
+                decompressor.end();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            metrics.connectionClosed();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package chatserver;
+
+/**
+ * The kinds of frame in the chat protocol.  In the text protocol a
+ * frame is its prefix followed by the payload on one line, for example
+ * "ENTERCLIENTsunil".  In the binary protocol the opcode is the first
+ * byte of the frame header (see BinaryCodec).
+ *
+ * The opcodes from NAME on are only sent by clients that speak the
+ * binary protocol; text clients express the same things with plain
+ * lines and commands (see ClientProtocol).
+ */
+enum Opcode {
+    /** Negotiates the wire format.  Always sent as a text line. */
+    PROTOCOL(0, "PROTOCOL "),
+    SUBMITNAME(1, "SUBMITNAME"),
+    NAMEACCEPTED(2, "NAMEACCEPTED"),
+    MESSAGE(3, "MESSAGE "),
+    ENTERCLIENT(4, "ENTERCLIENT"),
+    LEAVECLIENT(5, "LEAVECLIENT"),
+    /** The room the client is now in. */
+    JOINEDROOM(6, "JOINEDROOM"),
+    /** All room names, separated by commas. */
+    ROOMLIST(7, "ROOMLIST"),
+    /** The whole client list with its version, see Presence. */
+    ROSTER(8, "ROSTER"),
+    /** Changes to the client list between two versions. */
+    PRESENCE(9, "PRESENCE"),
+    /** Asks a quiet client to show it is still there, see Heartbeats. */
+    PING(10, "PING"),
+
+    /** Client to server: the payload is the screen name. */
+    NAME(16, null),
+    /** Client to server: the payload is text for everybody. */
+    BROADCAST(17, null),
+    /** Client to server: the payload is a receiver name and text. */
+    PRIVATE(18, null),
+    /** Client to server: the payload is the room to move to. */
+    JOIN(19, null),
+    /** Client to server: go back to the lobby. */
+    LEAVE(20, null),
+    /** Client to server: asks for ROOMLIST. */
+    LIST(21, null),
+    /** Client to server: asks for ROSTER. */
+    NAMES(22, null),
+    /** Client to server: the answer to PING. */
+    PONG(23, null),
+    /**
+     * Client to server, instead of NAME: a resume token and the number
+     * of frames received, see ResumableSession.
+     */
+    RESUME(24, null);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    /**
+     * The opcodes that have a text form.
+     */
+    private static final Opcode[] TEXT;
+
+    static {
+        int text = 0;
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+            if (opcode.textPrefix != null) {
+                text++;
+            }
+        }
+        TEXT = new Opcode[text];
+        text = 0;
+        for (Opcode opcode : values()) {
+            if (opcode.textPrefix != null) {
+                TEXT[text++] = opcode;
+            }
+        }
+    }
+
+    final byte code;
+
+    /**
+     * What the line starts with in the text protocol, or null if the
+     * opcode has no text form.
+     */
+    final String textPrefix;
+
+    Opcode(int code, String textPrefix) {
+        this.code = (byte) code;
+        this.textPrefix = textPrefix;
+    }
+
+    /**
+     * The opcode with the given wire code, or null if there is none.
+     */
+    static Opcode of(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+
+    /**
+     * The opcode of a line in the text protocol, found by its prefix, or
+     * null if it has none.  The payload is the rest of the line.
+     */
+    static Opcode ofLine(String line) {
+        for (Opcode opcode : TEXT) {
+            if (line.startsWith(opcode.textPrefix)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+}
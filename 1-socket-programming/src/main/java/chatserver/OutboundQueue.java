@@ -0,0 +1,232 @@
+package chatserver;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The frames waiting to be written to one client.  Senders only ever
+ * put frames in here, and the client's own writer takes them out, so a
+ * client that stops reading can no longer block the chatters who send
+ * to it.  Instead, once the queue is full the slow-consumer policy
+ * decides what happens.
+ *
+ * A Recorder, if set, sees every frame as it is taken out to be
+ * written, which is exactly the order the client receives them in
+ * (see ResumableSession).
+ */
+final class OutboundQueue {
+
+    /**
+     * Sees the frames taken from the queue.  Called with the queue
+     * locked, so it must not call back into the queue.
+     */
+    interface Recorder {
+        void record(Frame frame);
+    }
+
+    /**
+     * What to do when a frame arrives for a client whose queue is full.
+     */
+    enum Policy {
+        /**
+         * Throw away the oldest queued chat message to make room.
+         * Presence and protocol frames are never dropped, since the
+         * client's list and protocol state would be wrong for good; if
+         * nothing but those is queued the client is disconnected.
+         */
+        DROP_OLDEST,
+        /** Give up on the client and close its connection. */
+        DISCONNECT,
+        /**
+         * Replace all queued chat messages with a single note saying
+         * how many were skipped.  Presence and protocol lines are kept
+         * so the client list stays right, and if nothing but those is
+         * queued the client is disconnected.
+         */
+        CONFLATE;
+
+        static Policy parse(String value) {
+            return valueOf(value.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final Policy policy;
+    private long dropped;
+    private boolean closed;
+    private Recorder recorder;
+
+    /**
+     * The last note added by conflate, so that the next conflate can
+     * fold it into its own count instead of counting it as one frame.
+     */
+    private Frame conflatedNote;
+    private int conflatedCount;
+
+    OutboundQueue(int capacity, Policy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a frame, applying the policy if the queue is full.
+     *
+     * @return false if the policy says the client must be disconnected
+     */
+    synchronized boolean offer(Frame frame) {
+        if (closed) {
+            return true;
+        }
+        if (frames.size() >= capacity) {
+            switch (policy) {
+                case DISCONNECT:
+                    return false;
+                case CONFLATE:
+                    conflate();
+                    break;
+                default:
+                    break;
+            }
+            // Conflating may not free enough, and only chat messages
+            // may be dropped
+            while (frames.size() >= capacity) {
+                if (!dropOldestMessage()) {
+                    return false;
+                }
+            }
+        }
+        frames.add(frame);
+        notify();
+        return true;
+    }
+
+    /**
+     * Removes the oldest chat message.
+     *
+     * @return false if only presence and protocol frames are queued
+     */
+    private boolean dropOldestMessage() {
+        for (Iterator<Frame> it = frames.iterator(); it.hasNext(); ) {
+            Frame frame = it.next();
+            if (frame.isChatMessage()) {
+                it.remove();
+                dropped++;
+                if (frame == conflatedNote) {
+                    conflatedNote = null;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void conflate() {
+        int skipped = 0;
+        for (Iterator<Frame> it = frames.iterator(); it.hasNext(); ) {
+            Frame frame = it.next();
+            if (frame == conflatedNote) {
+                it.remove();
+                skipped += conflatedCount;
+            } else if (frame.isChatMessage()) {
+                it.remove();
+                dropped++;
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            conflatedNote = Frame.message("[" + skipped + " message(s) skipped, you are reading too slowly]");
+            conflatedCount = skipped;
+            frames.add(conflatedNote);
+        }
+    }
+
+    /**
+     * The next frame, or null if the queue is empty.
+     */
+    synchronized Frame poll() {
+        return next();
+    }
+
+    /**
+     * Waits at most the given time for the next frame.
+     *
+     * @return the frame, or null if none arrived in time or the queue
+     *         has been closed
+     */
+    synchronized Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long left;
+        while (frames.isEmpty() && !closed && (left = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return closed ? null : next();
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the frame, or null once the queue has been closed
+     */
+    synchronized Frame take() throws InterruptedException {
+        while (frames.isEmpty() && !closed) {
+            wait();
+        }
+        return closed ? null : next();
+    }
+
+    private Frame next() {
+        Frame frame = frames.poll();
+        if (frame != null && recorder != null) {
+            recorder.record(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Shows the recorder every frame taken from now on.
+     */
+    synchronized void record(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Closes the queue like close, but first shows the recorder the
+     * frames that were still waiting, as if they had been taken, and
+     * then lets go of it.  For a session moving to another connection.
+     */
+    synchronized void handOver() {
+        if (recorder != null) {
+            for (Frame frame : frames) {
+                recorder.record(frame);
+            }
+            recorder = null;
+        }
+        close();
+    }
+
+    /**
+     * Discards everything queued and wakes up a waiting writer.
+     * Later offers are ignored.
+     */
+    synchronized void close() {
+        closed = true;
+        frames.clear();
+        notifyAll();
+    }
+
+    /**
+     * The number of frames waiting to be written.
+     */
+    synchronized int depth() {
+        return frames.size();
+    }
+
+    /**
+     * The number of frames thrown away by the policy so far.
+     */
+    synchronized long dropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,233 @@
+package chatserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells clients who else is connected.  Clients from the original lab
+ * get one MESSAGE and one ENTERCLIENT or LEAVECLIENT for every change,
+ * and one ENTERCLIENT per client when they join, so every join costs
+ * O(N) frames and a mass reconnect O(N^2).
+ *
+ * Clients that answer the first SUBMITNAME with "PROTOCOL ROSTER"
+ * (the server answers with the same line) get the whole client list
+ * as one ROSTER frame when they join instead:
+ *
+ *     ROSTER<version> <names>
+ *
+ * and after that only PRESENCE frames with the changes since the
+ * previous version:
+ *
+ *     PRESENCE<base> <version> +alice,-bob
+ *
+ * Changes are collected for the presence window and then sent as one
+ * frame shared by all these clients.  Within a window only the last
+ * change per name counts, so a client that leaves and comes back is
+ * no change at all.  Names are separated by commas, with commas and
+ * backslashes inside names escaped by a backslash.
+ *
+ * A client applies a delta whose base is its version and ignores one
+ * it already has.  A base newer than its version means it lost frames
+ * (its queue may have dropped some), and it asks for a new ROSTER with
+ * "/roster" or a NAMES frame.
+ */
+final class Presence {
+
+    /**
+     * The text line that asks for, and acknowledges, ROSTER and
+     * PRESENCE frames.
+     */
+    static final String HANDSHAKE = Opcode.PROTOCOL.textPrefix + "ROSTER";
+
+    static final String ACCEPTED = "ROSTER";
+
+    private final ClientRegistry registry;
+    private final long windowMillis;
+
+    /**
+     * The clients that get ROSTER and PRESENCE.  Legacy clients are the
+     * registered sessions not in here.
+     */
+    private final Set<ClientSession> subscribers = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by the lock.  A snapshot is sent while holding it, so no
+    // delta computed after the snapshot can overtake it.
+    private final Object lock = new Object();
+    private final LinkedHashSet<String> roster = new LinkedHashSet<>();
+    private LinkedHashMap<String, Boolean> pending = new LinkedHashMap<>();
+    private long version;
+    private boolean flushScheduled;
+
+    Presence(ClientRegistry registry, long windowMillis) {
+        this.registry = registry;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Sends the client the current ROSTER and from then on every
+     * PRESENCE delta.
+     */
+    void subscribe(ClientSession session) {
+        synchronized (lock) {
+            subscribers.add(session);
+            session.send(snapshot());
+        }
+    }
+
+    void unsubscribe(ClientSession session) {
+        subscribers.remove(session);
+    }
+
+    /**
+     * Sends a fresh ROSTER, for a client that has lost track.
+     */
+    void resend(ClientSession session) {
+        synchronized (lock) {
+            session.send(snapshot());
+        }
+    }
+
+    private Frame snapshot() {
+        return Frame.of(Opcode.ROSTER, version + " " + join(roster));
+    }
+
+    /**
+     * A client joined here or on another node.  Legacy clients other
+     * than the new one are told right away.
+     *
+     * @param newcomer the session of a local client, or null
+     */
+    void entered(String name, ClientSession newcomer) {
+        Frame message = Frame.message(name + " has joined the Chat!");
+        Frame enter = Frame.of(Opcode.ENTERCLIENT, name);
+        for (ClientSession session : registry.sessions()) {
+            if (session != newcomer && !subscribers.contains(session)) {
+                session.send(message);
+                session.send(enter);
+            }
+        }
+        change(name, true);
+    }
+
+    /**
+     * A client left here or on another node.
+     */
+    void left(String name) {
+        Frame message = Frame.message(name + " has leave the Chat!");
+        Frame leave = Frame.of(Opcode.LEAVECLIENT, name);
+        for (ClientSession session : registry.sessions()) {
+            if (!subscribers.contains(session)) {
+                session.send(message);
+                session.send(leave);
+            }
+        }
+        change(name, false);
+    }
+
+    private void change(String name, boolean present) {
+        synchronized (lock) {
+            // Re-insert so the delta lists changes in their last order
+            pending.remove(name);
+            pending.put(name, present);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Applies the changes of the window and sends them as one delta.
+     * Runs on the flusher thread only, so deltas go out in order.
+     */
+    private void flush() {
+        Frame delta;
+        synchronized (lock) {
+            flushScheduled = false;
+            Map<String, Boolean> changes = pending;
+            pending = new LinkedHashMap<>();
+
+            StringBuilder payload = new StringBuilder();
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                String name = change.getKey();
+                boolean changed = change.getValue() ? roster.add(name) : roster.remove(name);
+                if (changed) {
+                    if (payload.length() > 0) {
+                        payload.append(',');
+                    }
+                    payload.append(change.getValue() ? '+' : '-').append(escape(name));
+                }
+            }
+            if (payload.length() == 0) {
+                return;
+            }
+            long base = version++;
+            delta = Frame.of(Opcode.PRESENCE, base + " " + version + " " + payload);
+        }
+        for (ClientSession session : subscribers) {
+            session.send(delta);
+        }
+    }
+
+    // ---- the name list encoding, also used by ChatClient ----
+
+    /**
+     * Joins names with commas, escaping as described above.
+     */
+    static String join(Collection<String> names) {
+        StringBuilder joined = new StringBuilder();
+        for (String name : names) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(escape(name));
+        }
+        return joined.toString();
+    }
+
+    private static String escape(String name) {
+        if (name.indexOf(',') < 0 && name.indexOf('\\') < 0) {
+            return name;
+        }
+        return name.replace("\\", "\\\\").replace(",", "\\,");
+    }
+
+    /**
+     * Splits what join produced back into names.
+     */
+    static List<String> split(String joined) {
+        List<String> names = new ArrayList<>();
+        if (joined.isEmpty()) {
+            return names;
+        }
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < joined.length(); i++) {
+            char c = joined.charAt(i);
+            if (c == '\\' && i + 1 < joined.length()) {
+                name.append(joined.charAt(++i));
+            } else if (c == ',') {
+                names.add(name.toString());
+                name.setLength(0);
+            } else {
+                name.append(c);
+            }
+        }
+        names.add(name.toString());
+        return names;
+    }
+}
@@ -0,0 +1,149 @@
+package chatserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reads text lines and binary frames from a blocking stream.  Both are
+ * read through the same buffer, so no bytes are lost when a connection
+ * switches from text to binary framing half way (which a
+ * BufferedReader in front of the stream could not guarantee).
+ *
+ * Not thread safe; one reader belongs to one reading thread.
+ */
+final class ProtocolReader {
+
+    private InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+
+    private byte[] line = new byte[128];
+
+    private final byte[] header = new byte[BinaryCodec.HEADER_SIZE];
+    private Opcode opcode;
+    private byte[] payload = new byte[256];
+    private int payloadLength;
+
+    ProtocolReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Continues reading through the given wrapper, for example an
+     * inflating stream once compression has been negotiated.  Bytes
+     * already buffered but not read yet go through the wrapper too.
+     */
+    void wrapInput(UnaryOperator<InputStream> wrapper) {
+        InputStream rest = in;
+        if (position < limit) {
+            rest = new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOfRange(buffer, position, limit)), in);
+        }
+        in = wrapper.apply(rest);
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * Reads one line of UTF-8 text, without the line terminator.
+     *
+     * @return the line, or null at the end of the stream
+     */
+    String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                return length == 0 ? null : decodeLine(length);
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                return decodeLine(length);
+            }
+            if (length == line.length) {
+                if (length == BinaryCodec.MAX_PAYLOAD) {
+                    throw new IOException("Line longer than " + BinaryCodec.MAX_PAYLOAD + " bytes");
+                }
+                line = Arrays.copyOf(line, Math.min(length * 2, BinaryCodec.MAX_PAYLOAD));
+            }
+            line[length++] = b;
+        }
+    }
+
+    private String decodeLine(int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the next binary frame.  Its contents are available from
+     * opcode, payload and payloadLength until the next call.
+     *
+     * @return false at the end of the stream
+     */
+    boolean readFrame() throws IOException {
+        if (!readFully(header, BinaryCodec.HEADER_SIZE, true)) {
+            return false;
+        }
+        opcode = Opcode.of(header[0]);
+        if (opcode == null) {
+            throw new IOException("Unknown opcode " + (header[0] & 0xFF));
+        }
+        try {
+            payloadLength = BinaryCodec.payloadLength(header);
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (payloadLength > payload.length) {
+            payload = new byte[payloadLength];
+        }
+        readFully(payload, payloadLength, false);
+        return true;
+    }
+
+    Opcode opcode() {
+        return opcode;
+    }
+
+    byte[] payload() {
+        return payload;
+    }
+
+    int payloadLength() {
+        return payloadLength;
+    }
+
+    private boolean readFully(byte[] target, int length, boolean eofAllowed) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (position == limit && !fill()) {
+                if (read == 0 && eofAllowed) {
+                    return false;
+                }
+                throw new EOFException("Stream ended inside a frame");
+            }
+            int count = Math.min(length - read, limit - position);
+            System.arraycopy(buffer, position, target, read, count);
+            position += count;
+            read += count;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+}
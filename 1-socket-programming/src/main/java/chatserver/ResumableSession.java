@@ -0,0 +1,288 @@
+package chatserver;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named client that survives losing its connection for a while.
+ * Clients ask for one by answering the first SUBMITNAME with the text
+ * line "PROTOCOL RESUME" (the server answers with the same line, or
+ * "PROTOCOL NONE" without --resume-grace).  Their NAMEACCEPTED then
+ * carries a token:
+ *
+ *     NAMEACCEPTED<token>
+ *
+ * From there on the client counts every frame it receives.  If the
+ * connection breaks, the client reconnects, goes through the same
+ * handshakes and answers SUBMITNAME with
+ *
+ *     PROTOCOL RESUME <token> <frames received>
+ *
+ * or, once binary, with a RESUME frame carrying the last two fields.
+ * If the session is still there the server answers with NAMEACCEPTED
+ * and the same token, followed by exactly the frames the client did
+ * not receive, and the client carries on counting where it was.  The
+ * client keeps its name, rooms and place in the roster, and nobody
+ * else notices anything.  Otherwise the server sends SUBMITNAME and
+ * the client joins like a new one.
+ *
+ * This object, not the connection, is what the registry, the rooms
+ * and Presence know, and it passes frames on to the current
+ * connection.  The frames the connection's queue hands to its writer
+ * are recorded in a ring of the last --resume-buffer frames, numbered
+ * in the order the client receives them, so the client's count tells
+ * exactly where to pick up.  While there is no connection, frames go
+ * straight into the ring.  A session nobody resumes within the grace
+ * period leaves the chat for good.
+ *
+ * A client that reconnects before the server noticed the old
+ * connection is dead takes the session over from it.
+ */
+final class ResumableSession implements ClientSession {
+
+    /**
+     * The text line that asks for, and acknowledges, a resumable
+     * session.  Followed by a token and a count it resumes one.
+     */
+    static final String HANDSHAKE = Opcode.PROTOCOL.textPrefix + "RESUME";
+
+    static final String ACCEPTED = "RESUME";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    final String token;
+    private final ChatRouter router;
+    private final boolean roster;
+    private final Log log;
+
+    // Guarded by this.  The connection and its queue and evict are null
+    // while the session waits to be resumed.
+    private ClientSession connection;
+    private OutboundQueue queue;
+    private Runnable evict;
+    private HashedWheelTimer.Timeout expiry;
+    private boolean ended;
+
+    private volatile String name;
+
+    /**
+     * The room the client is in, kept up to date by its protocol.
+     */
+    volatile Rooms.Room room;
+
+    ResumableSession(ChatRouter router, ClientSession connection, OutboundQueue queue, Runnable evict,
+            boolean roster) {
+        byte[] random = new byte[18];
+        RANDOM.nextBytes(random);
+        this.token = Base64.getUrlEncoder().encodeToString(random);
+        this.router = router;
+        this.roster = roster;
+        this.log = new Log(router.config().resumeBuffer);
+        this.connection = connection;
+        this.queue = queue;
+        this.evict = evict;
+        queue.record(log);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    void named(String name) {
+        this.name = name;
+    }
+
+    /**
+     * True if the client gets ROSTER and PRESENCE frames.
+     */
+    boolean roster() {
+        return roster;
+    }
+
+    public synchronized void send(Frame frame) {
+        if (connection != null) {
+            connection.send(frame);
+        } else if (!ended) {
+            log.record(frame);
+        }
+    }
+
+    public synchronized int queueDepth() {
+        return connection != null ? connection.queueDepth() : 0;
+    }
+
+    public synchronized long droppedLines() {
+        return connection != null ? connection.droppedLines() : 0;
+    }
+
+    public synchronized long throttledNanos() {
+        return connection != null ? connection.throttledNanos() : 0;
+    }
+
+    /**
+     * The NAMEACCEPTED that gives the client its token.  The client
+     * counts the frames after it.
+     */
+    Frame accepted() {
+        Frame accepted = Frame.of(Opcode.NAMEACCEPTED, token);
+        log.startAfter(accepted);
+        return accepted;
+    }
+
+    /**
+     * Moves the session to a new connection, if it can still be
+     * resumed from the client's count, and sends the client what it
+     * missed.  An old connection that is still open is closed.
+     *
+     * @return false if the session has ended or no longer has all the
+     *         frames the client missed; it has ended in any case then
+     */
+    boolean attach(ClientSession next, OutboundQueue nextQueue, Runnable nextEvict, long received) {
+        Runnable previous = null;
+        boolean resumed;
+        synchronized (this) {
+            if (ended) {
+                return false;
+            }
+            if (connection != null) {
+                queue.handOver();
+                previous = evict;
+            }
+            List<Frame> missed = log.since(received);
+            resumed = missed != null;
+            if (resumed) {
+                if (expiry != null) {
+                    expiry.cancel();
+                    expiry = null;
+                }
+                connection = next;
+                queue = nextQueue;
+                evict = nextEvict;
+                nextQueue.record(log);
+                next.send(accepted());
+                for (Frame frame : missed) {
+                    next.send(frame);
+                }
+            } else {
+                // The client is back but cannot be caught up, so the
+                // session ends now and its name is free for the new join
+                connection = null;
+            }
+        }
+        if (previous != null) {
+            previous.run();
+        }
+        if (!resumed) {
+            end();
+        }
+        return resumed;
+    }
+
+    /**
+     * The connection has gone.  Unless another one has taken over
+     * already, the session waits for the client for the grace period.
+     *
+     * @param wait false if the client was sent away on purpose and the
+     *             session should end right away
+     */
+    void detach(ClientSession gone, boolean wait) {
+        synchronized (this) {
+            if (connection != gone) {
+                return;
+            }
+            queue.handOver();
+            connection = null;
+            queue = null;
+            evict = null;
+            if (wait) {
+                expiry = router.timer().schedule(this::expire, router.config().resumeGraceSeconds,
+                        TimeUnit.SECONDS);
+                return;
+            }
+        }
+        end();
+    }
+
+    private void expire() {
+        synchronized (this) {
+            if (connection != null || ended) {
+                return;
+            }
+            ended = true;
+        }
+        router.metrics().sessionExpired();
+        router.ended(this);
+    }
+
+    /**
+     * Leaves the chat for good, unless that has happened already.
+     */
+    void end() {
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+        }
+        router.ended(this);
+    }
+
+    /**
+     * The last frames meant for the client, numbered by the order the
+     * client receives them in.
+     */
+    private static final class Log implements OutboundQueue.Recorder {
+        private final Frame[] ring;
+
+        /**
+         * Frames recorded so far, which is also the number of the last
+         * one.
+         */
+        private long count;
+
+        /**
+         * Frames are only counted after this one has been recorded.
+         */
+        private Frame start;
+        private boolean counting;
+
+        Log(int capacity) {
+            this.ring = new Frame[capacity];
+        }
+
+        synchronized void startAfter(Frame frame) {
+            start = frame;
+            counting = false;
+        }
+
+        public synchronized void record(Frame frame) {
+            if (!counting) {
+                counting = frame == start;
+                return;
+            }
+            ring[(int) (count++ % ring.length)] = frame;
+        }
+
+        /**
+         * The frames after the first received ones, which are about to
+         * be sent again and so recorded again.
+         *
+         * @return null if the ring no longer has all of them, or the
+         *         count cannot be right
+         */
+        synchronized List<Frame> since(long received) {
+            if (!counting || received > count || received < count - ring.length || received < 0) {
+                return null;
+            }
+            List<Frame> missed = new ArrayList<>((int) (count - received));
+            for (long i = received; i < count; i++) {
+                missed.add(ring[(int) (i % ring.length)]);
+            }
+            count = received;
+            return missed;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package chatserver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The chat rooms of the server.  Every client is in exactly one room
+ * at a time and starts out in the lobby, which is also where clients
+ * that do not know about rooms stay, so for them there is still one
+ * global room.  Other rooms exist while somebody is in them.
+ *
+ * Rooms are spread over a fixed number of dispatch shards, each a
+ * single thread.  A message to a room is fanned out by its shard, not
+ * by the thread that read it, so a busy room keeps its shard busy but
+ * does not hold up readers or rooms on other shards.  Messages to one
+ * room are fanned out in the order they arrived.
+ *
+ * With --room-messages or --room-bytes every room also has token
+ * buckets that all its members take from, so a room cannot be flooded
+ * by many clients that each stay under their own limit.
+ */
+final class Rooms {
+
+    static final String LOBBY = "lobby";
+
+    /**
+     * Room names are single words so they can be listed with commas.
+     */
+    static final int MAX_NAME_LENGTH = 32;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ExecutorService[] shards;
+    private final LatencyHistogram fanOut;
+    private final ServerConfig config;
+
+    /**
+     * @param fanOut records how long each room broadcast takes
+     */
+    Rooms(ServerConfig config, LatencyHistogram fanOut) {
+        this.config = config;
+        this.fanOut = fanOut;
+        int shardCount = config.roomShards;
+        shards = new ExecutorService[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            String threadName = "chat-room-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        rooms.put(LOBBY, newRoom(LOBBY));
+    }
+
+    private ExecutorService shardFor(String room) {
+        return shards[Math.floorMod(room.hashCode(), shards.length)];
+    }
+
+    /**
+     * True if the name can be used for a room.
+     */
+    static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (Character.isWhitespace(c) || c == ',') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Room newRoom(String name) {
+        return new Room(name, shardFor(name), fanOut,
+                TokenBucket.perSecond(config.roomMessageRate, config.rateBurstSeconds),
+                TokenBucket.perSecond(config.roomByteRate, config.rateBurstSeconds));
+    }
+
+    /**
+     * Adds the session to the room, creating the room if needed.
+     */
+    Room enter(String name, ClientSession session) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = newRoom(key);
+            }
+            room.members.add(session);
+            return room;
+        });
+    }
+
+    /**
+     * Removes the session from the room and drops the room once it is
+     * empty.  The lobby always stays.
+     */
+    void exit(Room room, ClientSession session) {
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            current.members.remove(session);
+            return current.members.isEmpty() && !key.equals(LOBBY) ? null : current;
+        });
+    }
+
+    /**
+     * The room of that name, or null if nobody is in it.
+     */
+    Room find(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * The names of all rooms, separated by commas.
+     */
+    String list() {
+        return String.join(",", rooms.keySet());
+    }
+
+    /**
+     * One room and the clients in it.
+     */
+    static final class Room {
+        final String name;
+        private final Set<ClientSession> members = ConcurrentHashMap.newKeySet();
+        private final ExecutorService shard;
+        private final LatencyHistogram fanOut;
+
+        /**
+         * The room's rate limits, or null where there is none.
+         */
+        final TokenBucket messageLimit;
+        final TokenBucket byteLimit;
+
+        private Room(String name, ExecutorService shard, LatencyHistogram fanOut,
+                     TokenBucket messageLimit, TokenBucket byteLimit) {
+            this.name = name;
+            this.shard = shard;
+            this.fanOut = fanOut;
+            this.messageLimit = messageLimit;
+            this.byteLimit = byteLimit;
+        }
+
+        /**
+         * Fans the frame out to everybody in the room on the room's
+         * shard.  Returns as soon as the work is queued.  The recorded
+         * fan-out time includes the wait for the shard.
+         */
+        void broadcast(Frame frame) {
+            long queued = System.nanoTime();
+            shard.execute(() -> {
+                for (ClientSession member : members) {
+                    member.send(frame);
+                }
+                fanOut.recordSince(queued);
+            });
+        }
+    }
+}
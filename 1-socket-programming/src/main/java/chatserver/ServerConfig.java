@@ -0,0 +1,492 @@
+package chatserver;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup options for the chat server.  Options are given on the
+ * command line as "--key=value" pairs, for example
+ *
+ *     java chatserver.ChatServer --engine=nio --loops=4
+ *     java chatserver.ChatServer --threads=virtual
+ *     java chatserver.ChatServer --queue-capacity=256 --slow-consumer=disconnect
+ *     java chatserver.ChatServer --port=9002 --cluster-port=9102 --peers=localhost:9101
+ *     java chatserver.ChatServer --flush=batched --flush-window=2 --stats-interval=10
+ *     java chatserver.ChatServer --history-dir=history --history-replay=20 --history-minutes=60
+ *     java chatserver.ChatServer --metrics-port=9100 --presence-window=100
+ *     java chatserver.ChatServer --compression=deflate --compression-level=6
+ *     java chatserver.ChatServer --client-messages=5 --client-bytes=4096 --room-messages=100
+ *     java chatserver.ChatServer --ping-interval=15 --read-timeout=45 --idle-timeout=3600
+ *     java chatserver.ChatServer --resume-grace=60 --resume-buffer=2048
+ *     java chatserver.ChatServer --events-broker=tcp://localhost:61616 --events-topic=chat.events
+ *
+ * Anything not given keeps the default, so running the server
+ * without arguments behaves exactly like the original lab version.
+ */
+final class ServerConfig {
+
+    /**
+     * The way client connections are serviced.
+     */
+    enum Engine {
+        /** One blocking Handler per client (the original design). */
+        BLOCKING,
+        /** A few selector-driven event loops shared by all clients. */
+        NIO
+    }
+
+    /**
+     * The threads that run the blocking engine's Handlers.
+     */
+    enum Threads {
+        PLATFORM,
+        POOLED,
+        VIRTUAL
+    }
+
+    /**
+     * When frames queued for a client are written to its socket.
+     */
+    enum Flush {
+        /** As soon as each frame is queued (the original behaviour). */
+        IMMEDIATE,
+        /**
+         * Once per event loop turn, or once the writer has drained the
+         * queue, and no earlier than flushWindowMillis after the first
+         * frame of the batch, so several frames share one write.
+         */
+        BATCHED
+    }
+
+    /**
+     * Whether clients may ask for a compressed connection.
+     */
+    enum Compression {
+        /** Clients asking for compression are told no. */
+        OFF,
+        /** See DeflateCodec. */
+        DEFLATE
+    }
+
+    /**
+     * The port that the server listens on.
+     */
+    int port = 9001;
+
+    Engine engine = Engine.BLOCKING;
+
+    /**
+     * Number of selector threads used by the NIO engine.
+     */
+    int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    Threads threads = Threads.PLATFORM;
+
+    /**
+     * Size of the Handler pool when threads is POOLED.
+     */
+    int poolSize = 256;
+
+    /**
+     * Lines that may wait for one client before the slow-consumer
+     * policy kicks in.
+     */
+    int queueCapacity = 1024;
+
+    OutboundQueue.Policy slowConsumer = OutboundQueue.Policy.DROP_OLDEST;
+
+    /**
+     * Threads that fan out room messages; rooms are spread over them.
+     */
+    int roomShards = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    Flush flush = Flush.IMMEDIATE;
+
+    /**
+     * How long a batched flush may wait for more frames.  0 flushes as
+     * soon as the frames already queued have been collected.
+     */
+    int flushWindowMillis;
+
+    /**
+     * Seconds between the statistics printed by the server, or 0 for
+     * none.
+     */
+    int statsInterval;
+
+    /**
+     * The port of the plain text metrics endpoint, or 0 for none.  The
+     * metrics are always available over JMX.
+     */
+    int metricsPort;
+
+    /**
+     * How long presence changes are collected before they are sent to
+     * the clients that asked for ROSTER and PRESENCE frames.
+     */
+    int presenceWindowMillis = 50;
+
+    /**
+     * Lines or frames one client may send per second after choosing a
+     * name, or 0 for no limit.  A client over a limit is not cut off;
+     * the server reads from it more slowly (see TokenBucket).
+     */
+    int clientMessageRate;
+
+    /**
+     * Bytes of chat text (UTF-8, as on the wire) one client may send
+     * per second, or 0.
+     */
+    int clientByteRate;
+
+    /**
+     * Messages per second to one room from all its members, or 0.
+     */
+    int roomMessageRate;
+
+    /**
+     * Bytes of chat text per second to one room from all its members,
+     * or 0.
+     */
+    int roomByteRate;
+
+    /**
+     * How many seconds' worth of its rate a client or room may send at
+     * once after being quiet.
+     */
+    double rateBurstSeconds = 2;
+
+    /**
+     * Seconds without input from a client after which it is sent PING,
+     * or 0 to send none (see Heartbeats).
+     */
+    int pingIntervalSeconds;
+
+    /**
+     * Seconds without any input, PONG included, after which a client is
+     * disconnected, or 0 to wait for the socket to fail.  Only clients
+     * that answer PING should connect to a server with a read timeout.
+     */
+    int readTimeoutSeconds;
+
+    /**
+     * Seconds without a message or command after which a client is
+     * disconnected, or 0 to keep idle clients.
+     */
+    int idleTimeoutSeconds;
+
+    /**
+     * Seconds a client that asked for a ResumableSession keeps its name
+     * and rooms after losing its connection, or 0 to refuse such
+     * requests.
+     */
+    int resumeGraceSeconds;
+
+    /**
+     * Frames kept per resumable session for a client that comes back.
+     * A client that missed more than this has to join again.
+     */
+    int resumeBuffer = 1024;
+
+    /**
+     * Where room messages are logged for replay, or null to keep no
+     * history.
+     */
+    String historyDir;
+
+    /**
+     * Messages replayed to a client entering a room.
+     */
+    int historyReplay = 50;
+
+    /**
+     * Replayed messages are at most this old, or any age if 0.
+     */
+    int historyMinutes;
+
+    /**
+     * Size of one history segment file.
+     */
+    int historySegmentMb = 16;
+
+    /**
+     * Recent messages kept in memory so most replays need no disk.
+     */
+    int historyRing = 1024;
+
+    /**
+     * Segments a replay reads at most, counting back from the newest,
+     * when the recent messages are not all in memory.
+     */
+    int historyScanSegments = 4;
+
+    /**
+     * The URL of the ActiveMQ broker chat events are exported to, or
+     * null to export nothing.
+     */
+    String eventsBroker;
+
+    /**
+     * The JMS topic chat events are published on.
+     */
+    String eventsTopic = "chat.events";
+
+    /**
+     * Events waiting for the broker at most; more are dropped.
+     */
+    int eventsBuffer = 10000;
+
+    /**
+     * Events sent to the broker in one transaction at most.
+     */
+    int eventsBatch = 100;
+
+    Compression compression = Compression.OFF;
+
+    /**
+     * The Deflater level of compressed connections, 1 (fastest) to 9
+     * (smallest).  Every broadcast is deflated once per compressed
+     * recipient, so the default favours CPU.
+     */
+    int compressionLevel = 1;
+
+    /**
+     * The port other cluster nodes connect to, or 0 to run alone.
+     */
+    int clusterPort;
+
+    /**
+     * The name of this node in the cluster.  Must be unique; it also
+     * breaks ties when two nodes claim the same screen name at once.
+     */
+    String nodeId;
+
+    /**
+     * The cluster ports of the other nodes.
+     */
+    List<InetSocketAddress> peers = new ArrayList<>();
+
+    /**
+     * Messages that may wait for one peer before the link to it is
+     * dropped as too slow.
+     */
+    int peerQueueCapacity = 65536;
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Parses the command line arguments of the server.  Unknown keys
+     * are rejected so that a typo does not silently fall back to a
+     * default.
+     */
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --key=value but got " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "engine":
+                    config.engine = Engine.valueOf(value.toUpperCase());
+                    break;
+                case "loops":
+                    config.eventLoops = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    config.threads = Threads.valueOf(value.toUpperCase());
+                    break;
+                case "pool-size":
+                    config.poolSize = Integer.parseInt(value);
+                    break;
+                case "queue-capacity":
+                    config.queueCapacity = Integer.parseInt(value);
+                    break;
+                case "slow-consumer":
+                    config.slowConsumer = OutboundQueue.Policy.parse(value);
+                    break;
+                case "room-shards":
+                    config.roomShards = Integer.parseInt(value);
+                    break;
+                case "flush":
+                    config.flush = Flush.valueOf(value.toUpperCase());
+                    break;
+                case "flush-window":
+                    config.flushWindowMillis = Integer.parseInt(value);
+                    break;
+                case "stats-interval":
+                    config.statsInterval = Integer.parseInt(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "presence-window":
+                    config.presenceWindowMillis = Integer.parseInt(value);
+                    break;
+                case "client-messages":
+                    config.clientMessageRate = Integer.parseInt(value);
+                    break;
+                case "client-bytes":
+                    config.clientByteRate = Integer.parseInt(value);
+                    break;
+                case "room-messages":
+                    config.roomMessageRate = Integer.parseInt(value);
+                    break;
+                case "room-bytes":
+                    config.roomByteRate = Integer.parseInt(value);
+                    break;
+                case "rate-burst":
+                    config.rateBurstSeconds = Double.parseDouble(value);
+                    break;
+                case "ping-interval":
+                    config.pingIntervalSeconds = Integer.parseInt(value);
+                    break;
+                case "read-timeout":
+                    config.readTimeoutSeconds = Integer.parseInt(value);
+                    break;
+                case "idle-timeout":
+                    config.idleTimeoutSeconds = Integer.parseInt(value);
+                    break;
+                case "resume-grace":
+                    config.resumeGraceSeconds = Integer.parseInt(value);
+                    break;
+                case "resume-buffer":
+                    config.resumeBuffer = Integer.parseInt(value);
+                    break;
+                case "history-dir":
+                    config.historyDir = value;
+                    break;
+                case "history-replay":
+                    config.historyReplay = Integer.parseInt(value);
+                    break;
+                case "history-minutes":
+                    config.historyMinutes = Integer.parseInt(value);
+                    break;
+                case "history-segment-mb":
+                    config.historySegmentMb = Integer.parseInt(value);
+                    break;
+                case "history-ring":
+                    config.historyRing = Integer.parseInt(value);
+                    break;
+                case "history-scan-segments":
+                    config.historyScanSegments = Integer.parseInt(value);
+                    break;
+                case "events-broker":
+                    config.eventsBroker = value;
+                    break;
+                case "events-topic":
+                    config.eventsTopic = value;
+                    break;
+                case "events-buffer":
+                    config.eventsBuffer = Integer.parseInt(value);
+                    break;
+                case "events-batch":
+                    config.eventsBatch = Integer.parseInt(value);
+                    break;
+                case "compression":
+                    config.compression = Compression.valueOf(value.toUpperCase());
+                    break;
+                case "compression-level":
+                    config.compressionLevel = Integer.parseInt(value);
+                    break;
+                case "cluster-port":
+                    config.clusterPort = Integer.parseInt(value);
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "peers":
+                    for (String peer : value.split(",")) {
+                        int colon = peer.lastIndexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Expected host:port in --peers but got " + peer);
+                        }
+                        config.peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                                Integer.parseInt(peer.substring(colon + 1))));
+                    }
+                    break;
+                case "peer-queue-capacity":
+                    config.peerQueueCapacity = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + key);
+            }
+        }
+        if (config.eventLoops < 1) {
+            throw new IllegalArgumentException("--loops must be at least 1");
+        }
+        if (config.poolSize < 1) {
+            throw new IllegalArgumentException("--pool-size must be at least 1");
+        }
+        if (config.roomShards < 1) {
+            throw new IllegalArgumentException("--room-shards must be at least 1");
+        }
+        if (config.queueCapacity < 1) {
+            throw new IllegalArgumentException("--queue-capacity must be at least 1");
+        }
+        if (config.flushWindowMillis < 0) {
+            throw new IllegalArgumentException("--flush-window must not be negative");
+        }
+        if (config.flushWindowMillis > 0 && config.flush != Flush.BATCHED) {
+            throw new IllegalArgumentException("--flush-window needs --flush=batched");
+        }
+        if (config.presenceWindowMillis < 0) {
+            throw new IllegalArgumentException("--presence-window must not be negative");
+        }
+        if (config.clientMessageRate < 0 || config.clientByteRate < 0
+                || config.roomMessageRate < 0 || config.roomByteRate < 0) {
+            throw new IllegalArgumentException("Rate limits must not be negative");
+        }
+        if (config.rateBurstSeconds <= 0) {
+            throw new IllegalArgumentException("--rate-burst must be positive");
+        }
+        if (config.pingIntervalSeconds < 0 || config.readTimeoutSeconds < 0 || config.idleTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("Heartbeat intervals and timeouts must not be negative");
+        }
+        if (config.readTimeoutSeconds > 0 && config.pingIntervalSeconds > 0
+                && config.readTimeoutSeconds <= config.pingIntervalSeconds) {
+            // Clients would be cut off before they had a chance to answer
+            throw new IllegalArgumentException("--read-timeout must be longer than --ping-interval");
+        }
+        if (config.resumeGraceSeconds < 0) {
+            throw new IllegalArgumentException("--resume-grace must not be negative");
+        }
+        if (config.resumeBuffer < 1) {
+            throw new IllegalArgumentException("--resume-buffer must be at least 1");
+        }
+        if (config.historySegmentMb < 1 || config.historySegmentMb > 1024) {
+            throw new IllegalArgumentException("--history-segment-mb must be between 1 and 1024");
+        }
+        if (config.historyRing < 1) {
+            throw new IllegalArgumentException("--history-ring must be at least 1");
+        }
+        if (config.historyScanSegments < 1) {
+            throw new IllegalArgumentException("--history-scan-segments must be at least 1");
+        }
+        if (config.eventsBuffer < 1) {
+            throw new IllegalArgumentException("--events-buffer must be at least 1");
+        }
+        if (config.eventsBatch < 1) {
+            throw new IllegalArgumentException("--events-batch must be at least 1");
+        }
+        if (config.compressionLevel < 1 || config.compressionLevel > 9) {
+            throw new IllegalArgumentException("--compression-level must be between 1 and 9");
+        }
+        if (config.peerQueueCapacity < 1) {
+            throw new IllegalArgumentException("--peer-queue-capacity must be at least 1");
+        }
+        if (!config.peers.isEmpty() && config.clusterPort == 0) {
+            throw new IllegalArgumentException("--peers needs --cluster-port");
+        }
+        if (config.nodeId == null) {
+            config.nodeId = "node-" + config.port;
+        }
+        return config;
+    }
+}
@@ -0,0 +1,507 @@
+package chatserver;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The numbers that tell how the chat server is doing.  Everything on
+ * the message path is a striped counter (LongAdder) or a lock free
+ * histogram, so recording costs an uncontended add and never blocks.
+ * Gauges such as the queue depths are only computed when somebody
+ * looks.
+ *
+ * The metrics are registered with the platform MBean server as
+ * chatserver:type=ChatServer, and with --metrics-port they are also
+ * served as plain text in the Prometheus exposition format:
+ *
+ *     curl http://localhost:9100/metrics
+ *
+ * The per-second rates are sampled once a second by a daemon thread.
+ */
+final class ServerMetrics implements ChatMetricsMXBean {
+
+    private final ClientRegistry registry;
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder privateMessages = new LongAdder();
+    private final LongAdder broadcastMessages = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder readTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder resumesRefused = new LongAdder();
+    private final LongAdder sessionsExpired = new LongAdder();
+    private final LongAdder eventsPublished = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder eventExportFailures = new LongAdder();
+    private final LongAdder historyDropped = new LongAdder();
+
+    /**
+     * Time from queueing a room message to having offered it to every
+     * member, per broadcast.
+     */
+    final LatencyHistogram fanOut = new LatencyHistogram();
+
+    /**
+     * Time from a submitted name to the client being welcomed, which
+     * includes asking the cluster.
+     */
+    final LatencyHistogram join = new LatencyHistogram();
+
+    final FlushStats flushStats = new FlushStats();
+
+    final CompressionStats compression = new CompressionStats();
+
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+
+    ServerMetrics(ClientRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the MBean, starts the rate sampler and, if configured,
+     * the scrape endpoint.
+     */
+    void start(ServerConfig config) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chatserver:type=ChatServer"));
+        } catch (JMException e) {
+            System.out.println("Cannot register the chat server MBean: " + e);
+        }
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] last = {0, 0, System.nanoTime()};
+        sampler.scheduleAtFixedRate(() -> {
+            long in = getMessagesIn();
+            long out = getMessagesOut();
+            long now = System.nanoTime();
+            double seconds = (now - last[2]) / 1e9;
+            messagesInPerSecond = (in - last[0]) / seconds;
+            messagesOutPerSecond = (out - last[1]) / seconds;
+            last[0] = in;
+            last[1] = out;
+            last[2] = now;
+        }, 1, 1, TimeUnit.SECONDS);
+
+        if (config.metricsPort > 0) {
+            HttpServer http = HttpServer.create(new InetSocketAddress(config.metricsPort), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(sampler);
+            http.start();
+            System.out.println("Metrics are served on http://localhost:" + config.metricsPort + "/metrics");
+        }
+    }
+
+    // ---- recording ----
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    void privateMessage() {
+        privateMessages.increment();
+    }
+
+    void broadcastMessage() {
+        broadcastMessages.increment();
+    }
+
+    /**
+     * A frame was queued for a client.
+     */
+    void frameOut() {
+        framesOut.increment();
+    }
+
+    /**
+     * Reading from a client was paused for its rate limits.
+     */
+    void throttled(long nanos) {
+        throttles.increment();
+        throttledNanos.add(nanos);
+    }
+
+    void pingSent() {
+        pingsSent.increment();
+    }
+
+    /**
+     * A client was disconnected for sending nothing, see Heartbeats.
+     */
+    void readTimeout() {
+        readTimeouts.increment();
+    }
+
+    /**
+     * A client was disconnected for not chatting.
+     */
+    void idleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    /**
+     * A client came back and took over its session.
+     */
+    void sessionResumed() {
+        sessionsResumed.increment();
+    }
+
+    /**
+     * A client asked to resume a session that has ended or cannot catch
+     * it up any more.
+     */
+    void resumeRefused() {
+        resumesRefused.increment();
+    }
+
+    /**
+     * Nobody resumed a session within the grace period.
+     */
+    void sessionExpired() {
+        sessionsExpired.increment();
+    }
+
+    /**
+     * A batch of chat events reached the broker.
+     */
+    void eventsPublished(int count) {
+        eventsPublished.add(count);
+    }
+
+    /**
+     * A chat event did not fit into the export buffer.
+     */
+    void eventDropped() {
+        eventsDropped.increment();
+    }
+
+    /**
+     * Connecting or sending to the events broker failed.
+     */
+    void eventExportFailed() {
+        eventExportFailures.increment();
+    }
+
+    /**
+     * A room message or replay did not fit into the backlog of the
+     * history thread.
+     */
+    void historyDropped() {
+        historyDropped.increment();
+    }
+
+    // ---- reading ----
+
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    public int getRegisteredNames() {
+        return registry.size();
+    }
+
+    public long getMessagesIn() {
+        return privateMessages.sum() + broadcastMessages.sum();
+    }
+
+    public long getMessagesOut() {
+        return framesOut.sum();
+    }
+
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    public long getPrivateMessages() {
+        return privateMessages.sum();
+    }
+
+    public long getBroadcastMessages() {
+        return broadcastMessages.sum();
+    }
+
+    public double getPrivateRatio() {
+        long all = getMessagesIn();
+        return all == 0 ? 0 : (double) getPrivateMessages() / all;
+    }
+
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (ClientSession session : registry.sessions()) {
+            String name = session.name();
+            if (name != null) {
+                depths.put(name, session.queueDepth());
+            }
+        }
+        return depths;
+    }
+
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+    }
+
+    public Map<String, Long> getThrottledMillisByClient() {
+        Map<String, Long> throttled = new TreeMap<>();
+        for (ClientSession session : registry.sessions()) {
+            String name = session.name();
+            long nanos = session.throttledNanos();
+            if (name != null && nanos > 0) {
+                throttled.put(name, TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        }
+        return throttled;
+    }
+
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    public long getReadTimeouts() {
+        return readTimeouts.sum();
+    }
+
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    public long getResumesRefused() {
+        return resumesRefused.sum();
+    }
+
+    public long getSessionsExpired() {
+        return sessionsExpired.sum();
+    }
+
+    public long getEventsPublished() {
+        return eventsPublished.sum();
+    }
+
+    public long getEventsDropped() {
+        return eventsDropped.sum();
+    }
+
+    public long getEventExportFailures() {
+        return eventExportFailures.sum();
+    }
+
+    public long getHistoryDropped() {
+        return historyDropped.sum();
+    }
+
+    public long getBroadcastFanOutMicrosP50() {
+        return fanOut.percentile(50);
+    }
+
+    public long getBroadcastFanOutMicrosP99() {
+        return fanOut.percentile(99);
+    }
+
+    public long getBroadcastFanOutMicrosMax() {
+        return fanOut.percentile(100);
+    }
+
+    public long getJoinMicrosP50() {
+        return join.percentile(50);
+    }
+
+    public long getJoinMicrosP99() {
+        return join.percentile(99);
+    }
+
+    public long getJoinMicrosMax() {
+        return join.percentile(100);
+    }
+
+    public long getCompressedConnections() {
+        return compression.connections();
+    }
+
+    public long getCompressionBytesSaved() {
+        return compression.bytesSaved();
+    }
+
+    public double getCompressionRatioOut() {
+        long raw = compression.rawOut();
+        return raw == 0 ? 0 : (double) compression.wireOut() / raw;
+    }
+
+    public long getCompressionCpuMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compression.deflateNanos() + compression.inflateNanos());
+    }
+
+    /**
+     * All metrics in the Prometheus text format.
+     */
+    String scrape() {
+        StringBuilder text = new StringBuilder();
+        gauge(text, "chat_connections_active", "Open client connections", getActiveConnections());
+        gauge(text, "chat_names_registered", "Clients with an accepted name on this node", getRegisteredNames());
+        counter(text, "chat_private_messages_total", "Private messages received", getPrivateMessages());
+        counter(text, "chat_broadcast_messages_total", "Room messages received", getBroadcastMessages());
+        counter(text, "chat_frames_out_total", "Frames queued for clients", getMessagesOut());
+        gauge(text, "chat_messages_in_per_second", "Messages received in the last second", getMessagesInPerSecond());
+        gauge(text, "chat_messages_out_per_second", "Frames queued in the last second", getMessagesOutPerSecond());
+        gauge(text, "chat_private_ratio", "Private share of the messages received", getPrivateRatio());
+
+        // Each metric's samples must be listed together
+        text.append("# HELP chat_queue_depth Frames waiting to be written to the client\n");
+        text.append("# TYPE chat_queue_depth gauge\n");
+        for (ClientSession session : registry.sessions()) {
+            if (session.name() != null) {
+                text.append("chat_queue_depth").append(clientLabel(session)).append(' ')
+                        .append(session.queueDepth()).append('\n');
+            }
+        }
+        text.append("# HELP chat_queue_dropped_total Frames dropped by the slow-consumer policy\n");
+        text.append("# TYPE chat_queue_dropped_total counter\n");
+        for (ClientSession session : registry.sessions()) {
+            if (session.name() != null) {
+                text.append("chat_queue_dropped_total").append(clientLabel(session)).append(' ')
+                        .append(session.droppedLines()).append('\n');
+            }
+        }
+
+        counter(text, "chat_throttles_total", "Pauses in reading from clients over a rate limit", getThrottles());
+        metric(text, "chat_throttled_seconds_total", "Time reading from clients was paused", "counter",
+                throttledNanos.sum() / 1e9);
+        text.append("# HELP chat_client_throttled_seconds_total Time reading from the client was paused\n");
+        text.append("# TYPE chat_client_throttled_seconds_total counter\n");
+        for (ClientSession session : registry.sessions()) {
+            if (session.name() != null && session.throttledNanos() > 0) {
+                text.append("chat_client_throttled_seconds_total").append(clientLabel(session)).append(' ')
+                        .append(session.throttledNanos() / 1e9).append('\n');
+            }
+        }
+
+        counter(text, "chat_pings_total", "PINGs sent to quiet clients", getPingsSent());
+        counter(text, "chat_read_timeouts_total", "Clients disconnected for sending nothing", getReadTimeouts());
+        counter(text, "chat_idle_timeouts_total", "Clients disconnected for not chatting", getIdleTimeouts());
+
+        counter(text, "chat_sessions_resumed_total", "Clients that reconnected and resumed their session",
+                getSessionsResumed());
+        counter(text, "chat_resumes_refused_total", "Resume requests for sessions that were gone",
+                getResumesRefused());
+        counter(text, "chat_sessions_expired_total", "Sessions nobody resumed in time", getSessionsExpired());
+
+        counter(text, "chat_events_published_total", "Chat events exported to the broker", getEventsPublished());
+        counter(text, "chat_events_dropped_total", "Chat events dropped because the export buffer was full",
+                getEventsDropped());
+        counter(text, "chat_event_export_failures_total", "Failed attempts to reach the events broker",
+                getEventExportFailures());
+        counter(text, "chat_history_dropped_total", "Room messages or replays dropped, the history was behind",
+                getHistoryDropped());
+
+        summary(text, "chat_broadcast_fanout_seconds", "Time to hand a room message to every member", fanOut);
+        summary(text, "chat_join_seconds", "Time from a submitted name to the welcome", join);
+
+        counter(text, "chat_flushes_total", "Socket flushes", flushStats.flushes());
+        counter(text, "chat_flushed_frames_total", "Frames written by those flushes", flushStats.frames());
+        counter(text, "chat_flushed_bytes_total", "Bytes written by those flushes", flushStats.bytes());
+
+        counter(text, "chat_compressed_connections_total", "Connections that negotiated compression",
+                compression.connections());
+        directions(text, "chat_compression_raw_bytes_total", "Bytes before deflating or after inflating",
+                compression.rawIn(), compression.rawOut());
+        directions(text, "chat_compression_wire_bytes_total", "Compressed bytes on the wire",
+                compression.wireIn(), compression.wireOut());
+        directions(text, "chat_compression_seconds_total", "Time spent inflating and deflating",
+                compression.inflateNanos() / 1e9, compression.deflateNanos() / 1e9);
+        return text.toString();
+    }
+
+    private static String clientLabel(ClientSession session) {
+        return "{client=\"" + session.name().replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        metric(text, name, help, "gauge", value);
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        metric(text, name, help, "counter", value);
+    }
+
+    private static void metric(StringBuilder text, String name, String help, String type, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ');
+        value(text, value);
+    }
+
+    private static void value(StringBuilder text, double value) {
+        if (value == Math.rint(value)) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+    }
+
+    /**
+     * A counter with one sample per direction of the traffic.
+     */
+    private static void directions(StringBuilder text, String name, String help, double in, double out) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append("{direction=\"in\"} ");
+        value(text, in);
+        text.append(name).append("{direction=\"out\"} ");
+        value(text, out);
+    }
+
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(quantile * 100) / 1e6).append('\n');
+        }
+        text.append(name).append("_sum ").append(histogram.sum() / 1e6).append('\n');
+        text.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+}
@@ -0,0 +1,52 @@
+package chatserver;
+
+/**
+ * A token bucket that lets its owner go into debt.  Tokens flow in at
+ * a fixed rate up to the burst size.  Taking tokens always succeeds,
+ * and if the bucket goes below zero the caller is told how long it
+ * takes to pay the debt back; the engines stop reading from the client
+ * for that long.  So nothing the client sent is dropped, it is merely
+ * read more slowly, and the client's own TCP window pushes back on it.
+ *
+ * A bucket may be shared (every client in a room takes from the room's
+ * bucket), hence the locking.
+ */
+final class TokenBucket {
+
+    private final double perNano;
+    private final double burst;
+    private double tokens;
+    private long updated = System.nanoTime();
+
+    /**
+     * @param perSecond    tokens added per second
+     * @param burstSeconds how many seconds' worth of tokens the bucket
+     *                     saves up at most
+     */
+    private TokenBucket(double perSecond, double burstSeconds) {
+        this.perNano = perSecond / 1e9;
+        this.burst = Math.max(1, perSecond * burstSeconds);
+        this.tokens = burst;
+    }
+
+    /**
+     * A bucket with the given rate, or null for no limit (a rate of 0).
+     */
+    static TokenBucket perSecond(int rate, double burstSeconds) {
+        return rate > 0 ? new TokenBucket(rate, burstSeconds) : null;
+    }
+
+    /**
+     * Takes the tokens.
+     *
+     * @return the nanoseconds until the bucket is out of debt again, 0
+     *         if it is not in debt
+     */
+    synchronized long take(double count) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - updated) * perNano);
+        updated = now;
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) (-tokens / perNano);
+    }
+}
@@ -0,0 +1,180 @@
+package chatserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+import javax.swing.Timer;
+
+/**
+ * Carries what ChatClient's reading thread learns from the server
+ * over to the Swing event dispatch thread.  The reader only adds to a
+ * pending batch and never touches a component; a Swing timer takes
+ * the whole batch a limited number of times per second and applies
+ * it in one go.  However fast the messages come, the screen is then
+ * repainted at most at that rate, and the reader never waits for the
+ * UI.
+ *
+ * Within a batch
+ *
+ *     messages     are appended to the MessageHistory at once; if
+ *                  more are pending than the history holds, the
+ *                  oldest pending ones are dropped right away
+ *     presence     is reduced to the last change per name, so a
+ *                  client that came and went in the same batch never
+ *                  shows up, and the roster gets one removal pass and
+ *                  one addition; a whole new roster replaces the list
+ *                  and every change before it
+ *     other work   (NAMEACCEPTED, room changes) runs first, in order
+ */
+final class UiUpdates {
+
+    private final MessageHistory history;
+    private final JList<String> messageList;
+    private final DefaultListModel<String> roster;
+    private final int maxPending;
+
+    private final Object lock = new Object();
+    private ArrayList<Runnable> actions = new ArrayList<>();
+    private ArrayDeque<String> messages = new ArrayDeque<>();
+
+    /**
+     * The last presence change per name: true for entered, false for
+     * left.
+     */
+    private LinkedHashMap<String, Boolean> presence = new LinkedHashMap<>();
+
+    /**
+     * A complete client list to show instead of the current one, or
+     * null.
+     */
+    private List<String> rosterSnapshot;
+
+    /**
+     * @param framesPerSecond how often the batch is applied at most
+     */
+    UiUpdates(MessageHistory history, JList<String> messageList, DefaultListModel<String> roster,
+              int maxPending, int framesPerSecond) {
+        this.history = history;
+        this.messageList = messageList;
+        this.roster = roster;
+        this.maxPending = maxPending;
+        Timer timer = new Timer(1000 / framesPerSecond, event -> apply());
+        timer.setCoalesce(true);
+        timer.start();
+    }
+
+    // ---- called by the reading thread ----
+
+    void message(String text) {
+        synchronized (lock) {
+            if (messages.size() == maxPending) {
+                messages.poll();
+            }
+            messages.add(text);
+        }
+    }
+
+    void entered(String name) {
+        changePresence(name, true);
+    }
+
+    void left(String name) {
+        changePresence(name, false);
+    }
+
+    private void changePresence(String name, boolean present) {
+        synchronized (lock) {
+            // Re-insert so the roster keeps the order of the last change
+            presence.remove(name);
+            presence.put(name, present);
+        }
+    }
+
+    /**
+     * Replaces the whole client list.
+     */
+    void roster(List<String> names) {
+        synchronized (lock) {
+            rosterSnapshot = names;
+            presence.clear();
+        }
+    }
+
+    /**
+     * Runs the work on the event dispatch thread with the next batch.
+     */
+    void run(Runnable action) {
+        synchronized (lock) {
+            actions.add(action);
+        }
+    }
+
+    // ---- on the event dispatch thread ----
+
+    private void apply() {
+        List<Runnable> nextActions;
+        ArrayDeque<String> nextMessages;
+        Map<String, Boolean> nextPresence;
+        List<String> nextRoster;
+        synchronized (lock) {
+            if (actions.isEmpty() && messages.isEmpty() && presence.isEmpty() && rosterSnapshot == null) {
+                return;
+            }
+            nextActions = actions;
+            nextMessages = messages;
+            nextPresence = presence;
+            nextRoster = rosterSnapshot;
+            rosterSnapshot = null;
+            actions = new ArrayList<>();
+            messages = new ArrayDeque<>();
+            presence = new LinkedHashMap<>();
+        }
+
+        for (Runnable action : nextActions) {
+            action.run();
+        }
+
+        if (!nextMessages.isEmpty()) {
+            // Follow new messages only if the user has not scrolled up
+            boolean atBottom = history.getSize() == 0 || messageList.getLastVisibleIndex() >= history.getSize() - 1;
+            history.addAll(nextMessages);
+            if (atBottom) {
+                messageList.ensureIndexIsVisible(history.getSize() - 1);
+            }
+        }
+
+        if (nextRoster != null) {
+            roster.clear();
+            roster.addAll(nextRoster);
+        }
+        if (!nextPresence.isEmpty()) {
+            applyPresence(nextPresence);
+        }
+    }
+
+    private void applyPresence(Map<String, Boolean> changes) {
+        Set<String> shown = new HashSet<>();
+        for (int i = roster.getSize() - 1; i >= 0; i--) {
+            String name = roster.getElementAt(i);
+            if (Boolean.FALSE.equals(changes.get(name))) {
+                roster.remove(i);
+            } else {
+                shown.add(name);
+            }
+        }
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            if (change.getValue() && !shown.contains(change.getKey())) {
+                added.add(change.getKey());
+            }
+        }
+        roster.addAll(added);
+    }
+}
@@ -0,0 +1,174 @@
+package chatserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.apache.activemq.broker.BrokerPlugin;
+import org.apache.activemq.broker.BrokerPluginSupport;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.TransactionId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the ChatEventPublisher against an ActiveMQ broker embedded in
+ * the test's VM.
+ */
+class ChatEventPublisherTest {
+
+    private static final String TOPIC = "chat.events";
+
+    /**
+     * Counts what the broker receives on the events topic.
+     */
+    private static final class Received extends BrokerPluginSupport {
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicInteger outsideTransactions = new AtomicInteger();
+        final AtomicInteger commits = new AtomicInteger();
+
+        @Override
+        public void send(ProducerBrokerExchange exchange, Message message) throws Exception {
+            if (message.getDestination().getPhysicalName().equals(TOPIC)) {
+                messages.incrementAndGet();
+                if (message.getTransactionId() == null) {
+                    outsideTransactions.incrementAndGet();
+                }
+            }
+            super.send(exchange, message);
+        }
+
+        @Override
+        public void commitTransaction(ConnectionContext context, TransactionId xid, boolean onePhase)
+                throws Exception {
+            commits.incrementAndGet();
+            super.commitTransaction(context, xid, onePhase);
+        }
+    }
+
+    private BrokerService broker;
+
+    @AfterEach
+    void stopBroker() throws Exception {
+        if (broker != null) {
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+    }
+
+    /**
+     * Starts a broker that the publisher reaches at vm://name.  The
+     * publisher's URL does not create brokers, so while this one is
+     * down it really cannot connect.
+     */
+    private Received startBroker(String name) throws Exception {
+        Received received = new Received();
+        broker = new BrokerService();
+        broker.setBrokerName(name);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setPlugins(new BrokerPlugin[] {received});
+        broker.start();
+        broker.waitUntilStarted();
+        return received;
+    }
+
+    private static ServerConfig config(String broker, int buffer, int batch) {
+        return ServerConfig.parse(new String[] {
+                "--events-broker=vm://" + broker + "?create=false",
+                "--events-topic=" + TOPIC,
+                "--events-buffer=" + buffer,
+                "--events-batch=" + batch});
+    }
+
+    private static ServerMetrics metrics() {
+        return new ServerMetrics(new ClientRegistry());
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 20_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting until " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void sendsWhatPiledUpAsOneTransaction() throws Exception {
+        Received received = startBroker("events-batch");
+        ServerMetrics metrics = metrics();
+        ChatEventPublisher publisher = new ChatEventPublisher(config("events-batch", 100, 100), metrics);
+        for (int i = 0; i < 50; i++) {
+            publisher.message("alice", "lobby", "hello " + i);
+        }
+
+        publisher.start();
+        await("the events are published", () -> metrics.getEventsPublished() == 50);
+
+        assertEquals(50, received.messages.get());
+        assertEquals(0, received.outsideTransactions.get());
+        assertEquals(1, received.commits.get());
+    }
+
+    @Test
+    void splitsBatchesAtTheBatchSize() throws Exception {
+        Received received = startBroker("events-split");
+        ServerMetrics metrics = metrics();
+        ChatEventPublisher publisher = new ChatEventPublisher(config("events-split", 100, 10), metrics);
+        for (int i = 0; i < 25; i++) {
+            publisher.joined("client" + i);
+        }
+
+        publisher.start();
+        await("the events are published", () -> metrics.getEventsPublished() == 25);
+
+        assertEquals(25, received.messages.get());
+        assertEquals(3, received.commits.get());
+    }
+
+    @Test
+    void countsEventsDroppedWhenTheBufferIsFull() throws Exception {
+        Received received = startBroker("events-overflow");
+        ServerMetrics metrics = metrics();
+        ChatEventPublisher publisher = new ChatEventPublisher(config("events-overflow", 5, 100), metrics);
+        // Nothing takes from the buffer before start
+        for (int i = 0; i < 8; i++) {
+            publisher.message("alice", "lobby", "hello " + i);
+        }
+        assertEquals(3, metrics.getEventsDropped());
+
+        publisher.start();
+        await("the buffered events are published", () -> metrics.getEventsPublished() == 5);
+        assertEquals(5, received.messages.get());
+        assertEquals(3, metrics.getEventsDropped());
+    }
+
+    @Test
+    void resendsAfterTheBrokerRestarts() throws Exception {
+        Received before = startBroker("events-restart");
+        ServerMetrics metrics = metrics();
+        ChatEventPublisher publisher = new ChatEventPublisher(config("events-restart", 100, 100), metrics);
+        publisher.start();
+        publisher.joined("alice");
+        await("the first event is published", () -> metrics.getEventsPublished() == 1);
+        assertEquals(1, before.messages.get());
+
+        broker.stop();
+        broker.waitUntilStopped();
+        for (int i = 0; i < 5; i++) {
+            publisher.message("alice", "lobby", "while down " + i);
+        }
+        await("the export fails", () -> metrics.getEventExportFailures() > 0);
+
+        Received after = startBroker("events-restart");
+        await("the events are published", () -> metrics.getEventsPublished() == 6);
+
+        // Events may be exported twice, but none are lost
+        assertTrue(after.messages.get() >= 5);
+        assertEquals(0, metrics.getEventsDropped());
+    }
+}
@@ -0,0 +1,144 @@
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls a MathService without blocking the caller.  Every operation
+ * returns a CompletableFuture right away, and the remote call runs on
+ * a small pool of client threads.
+ *
+ * RMI calls block the thread that makes them, so a call that is
+ * running needs a pool thread.  Calls beyond the pool size wait in a
+ * bounded queue, not in threads, so many calls can be outstanding
+ * while only a few threads exist.  When the queue is full the future
+ * fails with RejectedExecutionException instead of blocking the caller.
+ * Compose results with thenCombine, thenCompose and so on; those run
+ * when the results arrive and hold no thread while waiting.
+ *
+ * A slow call like divide keeps its pool thread until the server
+ * answers.  Give divide a timeout to have the server stop working on
+ * it as well: the future then fails once the time is up, and so does
+ * the call on the server, which frees the pool thread.
+ */
+public class AsyncMathClient implements AutoCloseable {
+
+    // A remote call to run on a pool thread
+    private interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+
+    private final MathService service;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads  remote calls running at the same time at most
+     * @param capacity calls waiting for a thread at most
+     */
+    public AsyncMathClient(MathService service, int threads, int capacity) {
+        this.service = service;
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "math-client-" + count.incrementAndGet());
+            // Calls that never return must not keep the client alive
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), factory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public CompletableFuture<Integer> add(int a, int b) {
+        return call(() -> service.add(a, b));
+    }
+
+    public CompletableFuture<Integer> subtract(int a, int b) {
+        return call(() -> service.subtract(a, b));
+    }
+
+    public CompletableFuture<Integer> multiply(int a, int b) {
+        return call(() -> service.multiply(a, b));
+    }
+
+    public CompletableFuture<Integer> divide(int a, int b) {
+        return call(() -> service.divide(a, b));
+    }
+
+    /**
+     * Divides with a deadline.  The future fails with TimeoutException
+     * when the time is up, and the server gives up at about the same
+     * time.  Cancelling the future (this one, not one derived from it)
+     * cancels the call on the server.
+     */
+    public CompletableFuture<Integer> divide(int a, int b, long timeout, TimeUnit unit) {
+        String callId = UUID.randomUUID().toString();
+        CompletableFuture<Integer> future = call(() -> service.divide(a, b, unit.toMillis(timeout), callId));
+        future.orTimeout(timeout, unit).whenComplete((result, error) -> {
+            if (error instanceof TimeoutException || error instanceof CancellationException) {
+                // Nobody reads the result, so tell the server to stop.
+                // If even this is rejected the deadline stops it.
+                call(() -> service.cancel(callId));
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<int[]> addAll(int[] a, int[] b) {
+        return call(() -> service.addAll(a, b));
+    }
+
+    public CompletableFuture<int[]> subtractAll(int[] a, int[] b) {
+        return call(() -> service.subtractAll(a, b));
+    }
+
+    public CompletableFuture<int[]> multiplyAll(int[] a, int[] b) {
+        return call(() -> service.multiplyAll(a, b));
+    }
+
+    public CompletableFuture<int[]> divideAll(int[] a, int[] b) {
+        return call(() -> service.divideAll(a, b));
+    }
+
+    /**
+     * Calls submitted but not finished yet.
+     */
+    public int outstanding() {
+        return executor.getActiveCount() + executor.getQueue().size();
+    }
+
+    // The future fails with the call's exception, or with
+    // RejectedExecutionException if too many calls are outstanding
+    private <T> CompletableFuture<T> call(RemoteCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    // Timed out or cancelled while waiting in the queue
+                    return;
+                }
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Stops taking calls.  Calls already submitted still run.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,94 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one kind of server work from starving the others.  Each
+ * operation of MathServer has its own bulkhead: a fixed number of
+ * worker threads and a bounded queue in front of them.  A call runs on
+ * a worker of its operation, and the RMI thread that received it
+ * waits for the result.  When all workers are busy and the queue is
+ * full, the call is rejected at once with a RemoteException, so a
+ * burst of slow divides fills up divide's bulkhead and nothing else.
+ *
+ * Only the workers are bounded.  The RMI runtime still takes a thread
+ * of its own for every incoming call, and that thread stays blocked
+ * here until the work is done, so many slow calls still tie up as many
+ * RMI threads.  A waiting thread that is interrupted cancels its work
+ * with an interrupt, which the work notices if it checks a Deadline.
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threads  calls of this operation running at the same time
+     * @param capacity calls waiting for a worker at most
+     */
+    public Bulkhead(String name, int threads, int capacity) {
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), task -> {
+                    Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Runs the work on a worker of this bulkhead and waits for it.
+     *
+     * @throws RemoteException if the bulkhead is full, or the waiting
+     *                         thread was interrupted
+     */
+    public <T> T call(Callable<T> work) throws RemoteException {
+        Future<T> future;
+        try {
+            future = executor.submit(work);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new RemoteException(name + " is busy, try again later");
+        }
+        try {
+            T result = future.get();
+            completed.incrementAndGet();
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RemoteException(name + " failed", cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RemoteException(name + " was interrupted");
+        }
+    }
+
+    /**
+     * How full the bulkhead is right now.
+     */
+    public BulkheadStats stats() {
+        return new BulkheadStats(name, executor.getMaximumPoolSize(), executor.getActiveCount(),
+                executor.getQueue().size(), executor.getQueue().size() + executor.getQueue().remainingCapacity(),
+                completed.get(), rejected.get());
+    }
+}
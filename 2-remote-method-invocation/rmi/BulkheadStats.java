@@ -0,0 +1,33 @@
+import java.io.Serializable;
+
+/**
+ * A snapshot of one Bulkhead of the server, sent to clients by
+ * MathService.bulkheadStats.
+ */
+public class BulkheadStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final String operation;
+    public final int threads;
+    public final int running;
+    public final int queued;
+    public final int capacity;
+    public final long completed;
+    public final long rejected;
+
+    public BulkheadStats(String operation, int threads, int running, int queued, int capacity,
+            long completed, long rejected) {
+        this.operation = operation;
+        this.threads = threads;
+        this.running = running;
+        this.queued = queued;
+        this.capacity = capacity;
+        this.completed = completed;
+        this.rejected = rejected;
+    }
+
+    public String toString() {
+        return operation + ": " + running + "/" + threads + " running, " + queued + "/" + capacity
+                + " queued, " + completed + " completed, " + rejected + " rejected";
+    }
+}
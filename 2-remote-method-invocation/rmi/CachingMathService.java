@@ -0,0 +1,212 @@
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A MathService that remembers answers.  add, subtract, multiply and
+ * divide are pure functions of their operands, so each result is kept
+ * in a LongIntLruCache per operation, keyed by both operands packed
+ * into one long, and asked for again it is answered without going to
+ * the server.  Failed calls are not cached.
+ *
+ * With coalescing on, a call that finds another thread already waiting
+ * for the same operation and operands waits for that answer instead of
+ * making its own remote call.  Only this path boxes the key, and only
+ * for calls that go to the server anyway.
+ *
+ * The bulk operations, cancel and bulkheadStats are passed through.
+ * A timed divide is answered from the cache if it can be, but never
+ * coalesced, because the call id and deadline belong to one caller.
+ */
+public class CachingMathService implements MathService {
+
+    private static final int ADD = 0;
+    private static final int SUBTRACT = 1;
+    private static final int MULTIPLY = 2;
+    private static final int DIVIDE = 3;
+
+    // A remote call of one operation
+    private interface RemoteCall {
+        int call() throws RemoteException;
+    }
+
+    private final MathService service;
+    private final boolean coalesce;
+    private final LongIntLruCache[] caches = new LongIntLruCache[4];
+    private final ConcurrentHashMap<Long, CompletableFuture<Integer>>[] inFlight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param capacity results kept per operation
+     * @param coalesce true to make concurrent identical calls share
+     *                 one remote call
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CachingMathService(MathService service, int capacity, boolean coalesce) {
+        this.service = service;
+        this.coalesce = coalesce;
+        this.inFlight = new ConcurrentHashMap[caches.length];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new LongIntLruCache(capacity);
+            inFlight[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    public int add(int a, int b) throws RemoteException {
+        return cached(ADD, a, b, () -> service.add(a, b));
+    }
+
+    public int subtract(int a, int b) throws RemoteException {
+        return cached(SUBTRACT, a, b, () -> service.subtract(a, b));
+    }
+
+    public int multiply(int a, int b) throws RemoteException {
+        return cached(MULTIPLY, a, b, () -> service.multiply(a, b));
+    }
+
+    public int divide(int a, int b) throws RemoteException {
+        return cached(DIVIDE, a, b, () -> service.divide(a, b));
+    }
+
+    public int divide(int a, int b, long timeoutMillis, String callId) throws RemoteException {
+        long key = key(a, b);
+        LongIntLruCache cache = caches[DIVIDE];
+        synchronized (cache) {
+            int entry = cache.find(key);
+            if (entry >= 0) {
+                hits.increment();
+                return cache.value(entry);
+            }
+        }
+        misses.increment();
+        int result = service.divide(a, b, timeoutMillis, callId);
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    public boolean cancel(String callId) throws RemoteException {
+        return service.cancel(callId);
+    }
+
+    public int[] addAll(int[] a, int[] b) throws RemoteException {
+        return service.addAll(a, b);
+    }
+
+    public int[] subtractAll(int[] a, int[] b) throws RemoteException {
+        return service.subtractAll(a, b);
+    }
+
+    public int[] multiplyAll(int[] a, int[] b) throws RemoteException {
+        return service.multiplyAll(a, b);
+    }
+
+    public int[] divideAll(int[] a, int[] b) throws RemoteException {
+        return service.divideAll(a, b);
+    }
+
+    public List<BulkheadStats> bulkheadStats() throws RemoteException {
+        return service.bulkheadStats();
+    }
+
+    // Calls answered from the cache
+    public long hits() {
+        return hits.sum();
+    }
+
+    // Calls that went to the server
+    public long misses() {
+        return misses.sum();
+    }
+
+    // Calls that waited for an identical call already on its way
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    public String toString() {
+        return "cache: " + hits() + " hits, " + misses() + " misses, " + coalesced() + " coalesced";
+    }
+
+    private static long key(int a, int b) {
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+
+    private int cached(int operation, int a, int b, RemoteCall call) throws RemoteException {
+        long key = key(a, b);
+        LongIntLruCache cache = caches[operation];
+        synchronized (cache) {
+            int entry = cache.find(key);
+            if (entry >= 0) {
+                hits.increment();
+                return cache.value(entry);
+            }
+        }
+        if (!coalesce) {
+            misses.increment();
+            int result = call.call();
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+            return result;
+        }
+
+        CompletableFuture<Integer> mine = new CompletableFuture<>();
+        CompletableFuture<Integer> running = inFlight[operation].putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        try {
+            // An identical call may have finished and cached its result
+            // between the look above and taking its place
+            synchronized (cache) {
+                int entry = cache.find(key);
+                if (entry >= 0) {
+                    hits.increment();
+                    int result = cache.value(entry);
+                    mine.complete(result);
+                    return result;
+                }
+            }
+            misses.increment();
+            int result = call.call();
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+            mine.complete(result);
+            return result;
+        } catch (RemoteException | RuntimeException | Error e) {
+            // The waiting calls fail the same way
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight[operation].remove(key, mine);
+        }
+    }
+
+    private static int await(CompletableFuture<Integer> running) throws RemoteException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+import java.rmi.RemoteException;
+
+/**
+ * The server gave up on a call because its Deadline passed or the
+ * client cancelled it.
+ */
+public class CallAbortedException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public CallAbortedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When the client stops waiting for a call.  Long running work checks
+ * its deadline as it goes and gives up with a CallAbortedException
+ * once the deadline has passed or the client has cancelled the call,
+ * so the server does not compute results nobody will read.  It also
+ * gives up when its thread is interrupted, which is how a Bulkhead
+ * cancels work whose caller stopped waiting.
+ *
+ * The client sends how long it is willing to wait rather than a point
+ * in time, so the clocks of client and server need not agree; the time
+ * the call spends on the network counts against the client only.
+ */
+public class Deadline {
+
+    // No time limit, but can still be cancelled
+    public static Deadline none() {
+        return new Deadline(0, false);
+    }
+
+    public static Deadline after(long timeoutMillis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), true);
+    }
+
+    private final long deadlineNanos;
+    private final boolean timed;
+    private volatile boolean cancelled;
+
+    private Deadline(long deadlineNanos, boolean timed) {
+        this.deadlineNanos = deadlineNanos;
+        this.timed = timed;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Gives up on the work if nobody is waiting for it any more.  Clears
+     * the interrupt flag of the thread when giving up because of it.
+     *
+     * @param operation what is given up on, for the message
+     */
+    public void check(String operation) throws CallAbortedException {
+        if (cancelled) {
+            throw new CallAbortedException(operation + " was cancelled by the client");
+        }
+        if (Thread.interrupted()) {
+            throw new CallAbortedException(operation + " was interrupted");
+        }
+        if (timed && System.nanoTime() - deadlineNanos >= 0) {
+            throw new CallAbortedException(operation + " passed its deadline");
+        }
+    }
+}
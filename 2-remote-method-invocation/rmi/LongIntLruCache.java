@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/**
+ * A fixed size map from long to int that forgets the least recently
+ * used entry when full.  Keys and values live in primitive arrays, so
+ * looking up and storing allocate nothing: entries are slots in the
+ * arrays, chained into hash buckets and into one doubly linked list
+ * from least to most recently used, and the slot of an evicted entry
+ * is reused for the new one.
+ *
+ * Not thread safe; callers synchronize on the cache.
+ */
+public class LongIntLruCache {
+    private static final int NONE = -1;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int[] chain;
+    private final int[] older;
+    private final int[] newer;
+    private final int[] buckets;
+    private final int shift;
+
+    private int size;
+    private int eldest = NONE;
+    private int youngest = NONE;
+
+    public LongIntLruCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        chain = new int[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        // At least two buckets per entry keeps the chains short
+        int bits = Math.max(1, 64 - Long.numberOfLeadingZeros(2L * capacity - 1));
+        buckets = new int[1 << bits];
+        Arrays.fill(buckets, NONE);
+        shift = 64 - bits;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks the key up and, if it is there, marks it most recently used.
+     *
+     * @return the entry to read with value, or -1 if the key is not there
+     */
+    public int find(long key) {
+        for (int entry = buckets[bucket(key)]; entry != NONE; entry = chain[entry]) {
+            if (keys[entry] == key) {
+                if (entry != youngest) {
+                    unlink(entry);
+                    append(entry);
+                }
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * The value of an entry returned by find, valid until the next put.
+     */
+    public int value(int entry) {
+        return values[entry];
+    }
+
+    /**
+     * Stores the value as most recently used, evicting the least
+     * recently used entry if the cache is full.
+     */
+    public void put(long key, int value) {
+        int entry = find(key);
+        if (entry != NONE) {
+            values[entry] = value;
+            return;
+        }
+        if (size < keys.length) {
+            entry = size++;
+        } else {
+            entry = eldest;
+            unlink(entry);
+            unchain(entry);
+        }
+        keys[entry] = key;
+        values[entry] = value;
+        int bucket = bucket(key);
+        chain[entry] = buckets[bucket];
+        buckets[bucket] = entry;
+        append(entry);
+    }
+
+    private int bucket(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    // Takes the entry out of its hash bucket
+    private void unchain(int entry) {
+        int bucket = bucket(keys[entry]);
+        if (buckets[bucket] == entry) {
+            buckets[bucket] = chain[entry];
+            return;
+        }
+        int previous = buckets[bucket];
+        while (chain[previous] != entry) {
+            previous = chain[previous];
+        }
+        chain[previous] = chain[entry];
+    }
+
+    // Takes the entry out of the use order
+    private void unlink(int entry) {
+        if (older[entry] != NONE) {
+            newer[older[entry]] = newer[entry];
+        } else {
+            eldest = newer[entry];
+        }
+        if (newer[entry] != NONE) {
+            older[newer[entry]] = older[entry];
+        } else {
+            youngest = older[entry];
+        }
+    }
+
+    // Puts the entry at the most recently used end
+    private void append(int entry) {
+        older[entry] = youngest;
+        newer[entry] = NONE;
+        if (youngest != NONE) {
+            newer[youngest] = entry;
+        } else {
+            eldest = entry;
+        }
+        youngest = entry;
+    }
+}
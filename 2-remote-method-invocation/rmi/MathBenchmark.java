@@ -0,0 +1,90 @@
+import java.rmi.Naming;
+
+/**
+ * Compares single add calls with addAll to find the batch size from
+ * which sending the pairs in one call is cheaper.  Start the registry
+ * and MathServer first, then run
+ *
+ *     java MathBenchmark [pairs per measurement] [largest batch]
+ *
+ * For every batch size the same number of pairs is added, once with
+ * one add call per pair and once with addAll calls of that size, and
+ * the time per pair is printed.  The crossover is the first batch size
+ * at which addAll wins.  Every measurement is preceded by a warm-up
+ * round so that JIT compilation and connection setup are not counted.
+ */
+public class MathBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int largest = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+        System.setProperty("java.security.policy", "file:allowall.policy");
+        MathService service = (MathService) Naming.lookup("//localhost/CalculatorService");
+
+        int[] a = new int[pairs];
+        int[] b = new int[pairs];
+        for (int i = 0; i < pairs; i++) {
+            a[i] = i;
+            b[i] = pairs - i;
+        }
+
+        singleCalls(service, a, b);
+        double single = singleCalls(service, a, b);
+        System.out.printf("single calls: %10.2f us per pair%n", single);
+
+        int crossover = 0;
+        for (int batch = 1; batch <= largest; batch *= 2) {
+            bulkCalls(service, a, b, batch);
+            double bulk = bulkCalls(service, a, b, batch);
+            System.out.printf("batch %6d: %10.2f us per pair (%.1fx)%n", batch, bulk, single / bulk);
+            if (crossover == 0 && bulk < single) {
+                crossover = batch;
+            }
+        }
+        if (crossover > 0) {
+            System.out.println("addAll is faster from a batch size of " + crossover);
+        } else {
+            System.out.println("addAll was never faster");
+        }
+    }
+
+    // Microseconds per pair, adding every pair with its own call
+    private static double singleCalls(MathService service, int[] a, int[] b) throws Exception {
+        long start = System.nanoTime();
+        long check = 0;
+        for (int i = 0; i < a.length; i++) {
+            check += service.add(a[i], b[i]);
+        }
+        return perPair(start, a.length, check);
+    }
+
+    // Microseconds per pair, adding the pairs in calls of batch pairs
+    private static double bulkCalls(MathService service, int[] a, int[] b, int batch) throws Exception {
+        int[] left = new int[batch];
+        int[] right = new int[batch];
+        long start = System.nanoTime();
+        long check = 0;
+        for (int from = 0; from < a.length; from += batch) {
+            int size = Math.min(batch, a.length - from);
+            if (size != left.length) {
+                left = new int[size];
+                right = new int[size];
+            }
+            System.arraycopy(a, from, left, 0, size);
+            System.arraycopy(b, from, right, 0, size);
+            for (int sum : service.addAll(left, right)) {
+                check += sum;
+            }
+        }
+        return perPair(start, a.length, check);
+    }
+
+    private static double perPair(long start, int pairs, long check) {
+        // Every sum is the same, so a wrong result shows up here
+        if (check != (long) pairs * pairs) {
+            throw new IllegalStateException("Wrong sums: " + check);
+        }
+        return (System.nanoTime() - start) / 1000.0 / pairs;
+    }
+}
@@ -1,8 +1,12 @@
 import java.net.MalformedURLException;
+import java.util.Arrays;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class MathClient {
     public static void main(String[] args) {
@@ -16,12 +20,46 @@ public class MathClient {
     MathService service = null;
 
     try {
-        service = (MathService) Naming.lookup("//localhost/CalculatorService");
+        // Answers the same question only once, see the add below
+        CachingMathService cache = new CachingMathService(
+                (MathService) Naming.lookup("//localhost/CalculatorService"), 1024, true);
+        service = cache;
 
-        System.out.println("Add: " + service.add(2, 2));
-        System.out.println("Subtract: " + service.subtract(5, 2));
-        System.out.println("Multiply: " + service.multiply(2, 6));
-        System.out.println("Divide: " + service.divide(4, 2));
+        // All calls are sent at once, divide does not hold up the others
+        try (AsyncMathClient client = new AsyncMathClient(service, 4, 100)) {
+            CompletableFuture<Void> add = client.add(2, 2)
+                    .thenAccept(result -> System.out.println("Add: " + result));
+            CompletableFuture<Void> subtract = client.subtract(5, 2)
+                    .thenAccept(result -> System.out.println("Subtract: " + result));
+            CompletableFuture<Void> multiply = client.multiply(2, 6)
+                    .thenAccept(result -> System.out.println("Multiply: " + result));
+            CompletableFuture<Void> addAll = client.addAll(new int[]{1, 2, 3}, new int[]{4, 5, 6})
+                    .thenAccept(result -> System.out.println("Add all: " + Arrays.toString(result)));
+
+            // (2 + 2) * (5 - 2), without waiting in between
+            CompletableFuture<Void> composed = client.add(2, 2)
+                    .thenCombine(client.subtract(5, 2), (sum, difference) -> client.multiply(sum, difference))
+                    .thenCompose(product -> product)
+                    .thenAccept(result -> System.out.println("(2 + 2) * (5 - 2): " + result));
+
+            // The server stops working on it as well after 5 seconds
+            CompletableFuture<Void> divide = client.divide(4, 2, 5, TimeUnit.SECONDS)
+                    .handle((result, error) -> {
+                        if (error instanceof TimeoutException || error instanceof CallAbortedException
+                                || error != null && error.getCause() instanceof CallAbortedException) {
+                            System.out.println("Divide: no answer after 5 seconds");
+                        } else if (error != null) {
+                            System.err.println(error.getMessage());
+                        } else {
+                            System.out.println("Divide: " + result);
+                        }
+                        return null;
+                    });
+
+            CompletableFuture.allOf(add, subtract, multiply, addAll, composed, divide).join();
+        }
+        System.out.println("Add again: " + service.add(2, 2));
+        System.out.println(cache);
     } catch (NotBoundException ex){
         System.err.println(ex.getMessage());
     }catch (MalformedURLException ex){
@@ -3,8 +3,22 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MathServer extends UnicastRemoteObject implements MathService {
+    // Every operation runs in its own Bulkhead, so slow divides cannot
+    // hold up the cheap operations.  The bulk operations share the
+    // bulkhead of their single version.
+    private final transient Bulkhead addBulkhead = new Bulkhead("add", 4, 64);
+    private final transient Bulkhead subtractBulkhead = new Bulkhead("subtract", 4, 64);
+    private final transient Bulkhead multiplyBulkhead = new Bulkhead("multiply", 4, 64);
+    private final transient Bulkhead divideBulkhead = new Bulkhead("divide", 2, 8);
+
+    // The deadlines of the calls that can be cancelled, by call id
+    private final ConcurrentHashMap<String, Deadline> deadlines = new ConcurrentHashMap<>();
+
     // TODO: Add a private variable to keep the client count
     public MathServer() throws RemoteException{
         super();
@@ -13,32 +27,133 @@ public class MathServer extends UnicastRemoteObject implements MathService {
     // TODO: add a method to increment the cleint count. Make it thread safe
 
     public int add(int a, int b) throws RemoteException {
-        System.out.println("Adding " + a + " and " + b + " in the server");
-        return a+b;
+        return addBulkhead.call(() -> {
+            System.out.println("Adding " + a + " and " + b + " in the server");
+            return a+b;
+        });
     }
 
     public int subtract(int a, int b) throws RemoteException {
-        System.out.println("Subtracting " + a + " and " + b + " in the server");
-        return a-b;
+        return subtractBulkhead.call(() -> {
+            System.out.println("Subtracting " + a + " and " + b + " in the server");
+            return a-b;
+        });
     }
 
     public int multiply(int a, int b) throws RemoteException {
-        System.out.println("Multiplying " + a + " and " + b + " in the server");
-        return a*b;
+        return multiplyBulkhead.call(() -> {
+            System.out.println("Multiplying " + a + " and " + b + " in the server");
+            return a*b;
+        });
     }
 
     public int divide(int a, int b) throws RemoteException {
+        return divideBulkhead.call(() -> slowDivide(a, b, Deadline.none()));
+    }
+
+    public int divide(int a, int b, long timeoutMillis, String callId) throws RemoteException {
+        Deadline deadline = Deadline.after(timeoutMillis);
+        // Known before the call is queued, so waiting calls can be
+        // cancelled too
+        if (deadlines.putIfAbsent(callId, deadline) != null) {
+            throw new IllegalArgumentException("Call " + callId + " is already running");
+        }
+        try {
+            return divideBulkhead.call(() -> slowDivide(a, b, deadline));
+        } finally {
+            deadlines.remove(callId, deadline);
+        }
+    }
+
+    public boolean cancel(String callId) throws RemoteException {
+        Deadline deadline = deadlines.get(callId);
+        if (deadline == null) {
+            return false;
+        }
+        System.out.println("Cancelling call " + callId);
+        deadline.cancel();
+        return true;
+    }
+
+    private int slowDivide(int a, int b, Deadline deadline) throws CallAbortedException {
+        deadline.check("divide");
         // Uncomment this to observer the client get blocked
         for (double i = 0; i < 10000000000000000.0; i++){
+            deadline.check("divide");
             System.out.println("I'm doing something that takes a long time");
         }
 
         if(b != 0) {
             System.out.println("Dividing " + a + " and " + b + " in the server");
-            return a / b;
         } else{
             System.out.println("Can not divide by 0");
-            return a;
+        }
+        return quotient(a, b);
+    }
+
+    // Dividing by 0 gives back a, as in divide
+    private static int quotient(int a, int b) {
+        return b != 0 ? a / b : a;
+    }
+
+    public int[] addAll(int[] a, int[] b) throws RemoteException {
+        checkLengths(a, b);
+        return addBulkhead.call(() -> {
+            System.out.println("Adding " + a.length + " pairs in the server");
+            int[] result = new int[a.length];
+            for (int i = 0; i < a.length; i++) {
+                result[i] = a[i] + b[i];
+            }
+            return result;
+        });
+    }
+
+    public int[] subtractAll(int[] a, int[] b) throws RemoteException {
+        checkLengths(a, b);
+        return subtractBulkhead.call(() -> {
+            System.out.println("Subtracting " + a.length + " pairs in the server");
+            int[] result = new int[a.length];
+            for (int i = 0; i < a.length; i++) {
+                result[i] = a[i] - b[i];
+            }
+            return result;
+        });
+    }
+
+    public int[] multiplyAll(int[] a, int[] b) throws RemoteException {
+        checkLengths(a, b);
+        return multiplyBulkhead.call(() -> {
+            System.out.println("Multiplying " + a.length + " pairs in the server");
+            int[] result = new int[a.length];
+            for (int i = 0; i < a.length; i++) {
+                result[i] = a[i] * b[i];
+            }
+            return result;
+        });
+    }
+
+    // Without the long running loop of divide, which is only there to
+    // show a blocked client
+    public int[] divideAll(int[] a, int[] b) throws RemoteException {
+        checkLengths(a, b);
+        return divideBulkhead.call(() -> {
+            System.out.println("Dividing " + a.length + " pairs in the server");
+            int[] result = new int[a.length];
+            for (int i = 0; i < a.length; i++) {
+                result[i] = quotient(a[i], b[i]);
+            }
+            return result;
+        });
+    }
+
+    public List<BulkheadStats> bulkheadStats() throws RemoteException {
+        return Arrays.asList(addBulkhead.stats(), subtractBulkhead.stats(), multiplyBulkhead.stats(),
+                divideBulkhead.stats());
+    }
+
+    private static void checkLengths(int[] a, int[] b) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Got " + a.length + " left and " + b.length + " right operands");
         }
     }
 
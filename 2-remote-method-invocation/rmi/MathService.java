@@ -1,9 +1,29 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface MathService extends Remote {
     public int add(int a, int b) throws RemoteException;
     public int subtract(int a , int b) throws RemoteException;
     public int multiply(int a, int b) throws RemoteException;
     public int divide(int a, int b) throws RemoteException;
+
+    // divide with a Deadline: the server gives up with a
+    // CallAbortedException once timeoutMillis have passed since it got
+    // the call, or once cancel is called with the same callId.  Call
+    // ids are chosen by the client and must be unique while running.
+    public int divide(int a, int b, long timeoutMillis, String callId) throws RemoteException;
+    public boolean cancel(String callId) throws RemoteException;
+
+    // Bulk versions: result[i] is the operation applied to a[i] and b[i],
+    // so a whole array of pairs costs a single round trip to the server.
+    // Both arrays must have the same length.
+    public int[] addAll(int[] a, int[] b) throws RemoteException;
+    public int[] subtractAll(int[] a, int[] b) throws RemoteException;
+    public int[] multiplyAll(int[] a, int[] b) throws RemoteException;
+    public int[] divideAll(int[] a, int[] b) throws RemoteException;
+
+    // How busy the server's bulkhead of each operation is.  When one is
+    // full its operation fails straight away with a RemoteException.
+    public List<BulkheadStats> bulkheadStats() throws RemoteException;
 }